@@ -0,0 +1,194 @@
+/*
+ * Copyright 2013 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package com.google.cloud.solutions.cloudadventure.model.world;
+
+import com.google.cloud.solutions.cloudadventure.model.world.Maze.Cardinal;
+import com.google.cloud.solutions.cloudadventure.model.world.Tile.Coordinates;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Checks the equality and hash contract of {@link Tile} and {@link Coordinates}, then compares
+ * {@code HashMap<Tile, ...>} lookups with the hashing Tiles have now against the string-building
+ * hashing they used to have. It runs from a main method so that it needs nothing beyond the JDK
+ * and the classes under src:
+ *
+ * <pre>
+ * javac -d out $(find src bench -name '*.java')
+ * java -cp out com.google.cloud.solutions.cloudadventure.model.world.TileHashBenchmark [size]
+ * </pre>
+ *
+ * It exits with status 1 if the contract is broken, before measuring anything.
+ */
+public class TileHashBenchmark {
+
+  private static final Cardinal[] DIRECTIONS = Cardinal.values();
+
+  /**
+   * A Tile with the equality and hash Tiles had before they were keyed by their coordinates.
+   */
+  private static class LegacyTile {
+    private final Tile tile;
+
+    LegacyTile(Tile tile) {
+      this.tile = tile;
+    }
+
+    @Override
+    public boolean equals(Object object) {
+      if (!(object instanceof LegacyTile)) {
+        return false;
+      }
+      Tile other = ((LegacyTile) object).tile;
+      return tile.coord.x == other.coord.x && tile.coord.y == other.coord.y
+          && tile.getOpenTo().equals(other.getOpenTo());
+    }
+
+    @Override
+    public int hashCode() {
+      return (String.valueOf(tile.coord.x) + String.valueOf(tile.coord.y) + tile.getOpenTo())
+          .hashCode();
+    }
+  }
+
+  public static void main(String[] args) {
+    int size = args.length > 0 ? Integer.parseInt(args[0]) : 100;
+    if (!checkContract(size)) {
+      System.exit(1);
+    }
+
+    Tile[] tiles = new Tile[size * size];
+    Tile[] probes = new Tile[size * size];
+    for (int x = 0; x < size; x++) {
+      for (int y = 0; y < size; y++) {
+        tiles[x * size + y] = newTile(x, y, x * 31 + y);
+        probes[x * size + y] = newTile(x, y, x * 31 + y);
+      }
+    }
+    System.out.println("Distinct hashes over " + tiles.length + " tiles: now "
+        + distinctHashes(tiles, false) + ", before " + distinctHashes(tiles, true));
+
+    for (int round = 0; round < 5; round++) {
+      // The first rounds warm up; the last one is the result.
+      long now = time(tiles, probes, false);
+      long before = time(tiles, probes, true);
+      if (round == 4) {
+        System.out.printf("Build and look up every tile: now %,d ns/tile, before %,d ns/tile%n",
+            now / tiles.length, before / tiles.length);
+      }
+    }
+  }
+
+  /**
+   * @return whether equal Tiles and Coordinates have equal hashes, Tiles at different Coordinates
+   *         are different, and Tiles at the same Coordinates are equal whatever they are open to
+   */
+  private static boolean checkContract(int size) {
+    boolean ok = true;
+    ok &= check("(1, 23) and (12, 3) differ",
+        !new Coordinates(1, 23).equals(new Coordinates(12, 3)));
+    ok &= check("Coordinates with the same x and y are equal and hash alike",
+        new Coordinates(7, 9).equals(new Coordinates(7, 9))
+            && new Coordinates(7, 9).hashCode() == new Coordinates(7, 9).hashCode());
+    Tile open = newTile(3, 4, 0xF);
+    Tile closed = newTile(3, 4, 0);
+    ok &= check("Tiles at the same Coordinates are equal whatever they are open to",
+        open.equals(closed) && closed.equals(open) && open.hashCode() == closed.hashCode());
+    Set<Tile> set = new HashSet<Tile>();
+    set.add(open);
+    ok &= check("a Set of Tiles holds one Tile per cell", !set.add(closed) && set.size() == 1);
+    ok &= check("a Tile is not equal to null or to its Coordinates",
+        !open.equals(null) && !open.equals(open.coord));
+
+    Set<Long> keys = new HashSet<Long>();
+    for (int x = -size; x < size; x++) {
+      for (int y = -size; y < size; y++) {
+        Tile tile = newTile(x, y, x + y);
+        Tile same = newTile(x, y, x - y);
+        if (!tile.equals(same) || tile.hashCode() != same.hashCode()
+            || tile.equals(newTile(x, y + 1, x + y)) || !keys.add(tile.coord.key())) {
+          return check("equality over a " + 2 * size + " by " + 2 * size + " grid", false);
+        }
+      }
+    }
+    return check("equality and distinct keys over a " + 2 * size + " by " + 2 * size + " grid",
+        true) && ok;
+  }
+
+  private static boolean check(String what, boolean passed) {
+    System.out.println((passed ? "ok    " : "FAIL  ") + what);
+    return passed;
+  }
+
+  /**
+   * @return the time to put every tile in a map and look each one up by an equal probe, in ns
+   */
+  private static long time(Tile[] tiles, Tile[] probes, boolean legacy) {
+    long start = System.nanoTime();
+    long found = 0;
+    if (legacy) {
+      Map<LegacyTile, Tile> map = new HashMap<LegacyTile, Tile>();
+      for (Tile tile : tiles) {
+        map.put(new LegacyTile(tile), tile);
+      }
+      for (Tile probe : probes) {
+        found += map.get(new LegacyTile(probe)) != null ? 1 : 0;
+      }
+    } else {
+      Map<Tile, Tile> map = new HashMap<Tile, Tile>();
+      for (Tile tile : tiles) {
+        map.put(tile, tile);
+      }
+      for (Tile probe : probes) {
+        found += map.get(probe) != null ? 1 : 0;
+      }
+    }
+    long elapsed = System.nanoTime() - start;
+    if (found != probes.length) {
+      throw new IllegalStateException("Found " + found + " of " + probes.length + " tiles.");
+    }
+    return elapsed;
+  }
+
+  private static int distinctHashes(Tile[] tiles, boolean legacy) {
+    Set<Integer> hashes = new HashSet<Integer>();
+    for (Tile tile : tiles) {
+      hashes.add(legacy ? new LegacyTile(tile).hashCode() : tile.hashCode());
+    }
+    return hashes.size();
+  }
+
+  /**
+   * @return a Tile open to the directions whose bits are set in the mask
+   */
+  private static Tile newTile(int x, int y, int mask) {
+    Set<Cardinal> openTo = new HashSet<Cardinal>();
+    for (Cardinal direction : DIRECTIONS) {
+      if ((mask & (1 << direction.ordinal())) != 0) {
+        openTo.add(direction);
+      }
+    }
+    Tile tile = new Tile(x, y, "", Collections.<Creature>emptySet(),
+        Collections.<Pickup>emptySet());
+    tile.setOpenTo(openTo);
+    return tile;
+  }
+}
@@ -0,0 +1,173 @@
+/*
+ * Copyright 2013 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package com.google.cloud.solutions.cloudadventure.util;
+
+import com.google.cloud.solutions.cloudadventure.model.world.Maze;
+import com.google.cloud.solutions.cloudadventure.model.world.Maze.MazeType;
+
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Compares a shared static {@link Random}, as {@link WorldGenerator} used to have, with
+ * {@link ThreadLocalRandom}, as it uses now, under concurrent use. It runs from a main method so
+ * that it needs nothing beyond the JDK and the classes under src:
+ *
+ * <pre>
+ * javac -d out $(find src bench -name '*.java')
+ * java -cp out com.google.cloud.solutions.cloudadventure.util.RandomBenchmark [seconds] [threads]
+ * </pre>
+ *
+ * The first part draws random numbers the way the static helpers do, from every core at once; the
+ * second generates whole mazes concurrently, each drawing a seed and location descriptions from
+ * the source under test, as createGame does. Each is run on one thread and on as many threads as
+ * there are cores, unless a number of threads is given.
+ */
+public class RandomBenchmark {
+
+  private static final Random SHARED = new Random();
+
+  /**
+   * A source of random numbers, shared or thread-local.
+   */
+  private interface Source {
+    Random get();
+  }
+
+  private static final Source SHARED_SOURCE = new Source() {
+    @Override
+    public Random get() {
+      return SHARED;
+    }
+
+    @Override
+    public String toString() {
+      return "shared Random";
+    }
+  };
+
+  private static final Source THREAD_LOCAL_SOURCE = new Source() {
+    @Override
+    public Random get() {
+      return ThreadLocalRandom.current();
+    }
+
+    @Override
+    public String toString() {
+      return "ThreadLocalRandom";
+    }
+  };
+
+  /**
+   * A unit of work, repeated by every thread until the time is up.
+   */
+  private interface Work {
+    long run(Source source);
+  }
+
+  private static final Work DRAWS = new Work() {
+    @Override
+    public long run(Source source) {
+      // As in generateLocationDescription and getRandom.
+      Random random = source.get();
+      return random.nextInt(23) + random.nextInt(22) + (random.nextBoolean() ? 1 : 0)
+          + random.nextInt(10);
+    }
+  };
+
+  private static final Work MAZES = new Work() {
+    @Override
+    public long run(Source source) {
+      Maze maze = new Maze(MazeType.RANDOM, MazeType.RANDOM.getWidth(),
+          MazeType.RANDOM.getHeight(), source.get().nextLong());
+      long sum = maze.getStartingCoordinates().x;
+      for (int i = 0; i < MazeType.RANDOM.getWidth() * MazeType.RANDOM.getHeight(); i++) {
+        Random random = source.get();
+        sum += random.nextInt(23) + random.nextInt(22) + (random.nextBoolean() ? 1 : 0);
+      }
+      return sum;
+    }
+  };
+
+  public static void main(String[] args) throws InterruptedException {
+    long millis = (args.length > 0 ? Long.parseLong(args[0]) : 2) * 1000;
+    int cores = Runtime.getRuntime().availableProcessors();
+    int maxThreads = args.length > 1 ? Integer.parseInt(args[1]) : cores;
+    int[] threadCounts = maxThreads > 1 ? new int[] {1, maxThreads} : new int[] {1};
+    System.out.println("Cores: " + cores + ", " + millis + " ms per run");
+    for (String name : new String[] {"draws", "mazes"}) {
+      Work work = "draws".equals(name) ? DRAWS : MAZES;
+      // Compiles the work before any of it is measured.
+      run(work, SHARED_SOURCE, 1, millis);
+      for (int threads : threadCounts) {
+        for (Source source : new Source[] {SHARED_SOURCE, THREAD_LOCAL_SOURCE}) {
+          // A warm-up run at this number of threads, then the measured one.
+          run(work, source, threads, millis / 2);
+          double perSecond = run(work, source, threads, millis) * 1000.0 / millis;
+          System.out.printf("%-6s %3d threads  %-18s %,15.0f ops/s%n",
+              name, threads, source, perSecond);
+        }
+      }
+    }
+  }
+
+  /**
+   * @return the number of times the work was done by all the threads together
+   */
+  private static long run(final Work work, final Source source, int threads, final long millis)
+      throws InterruptedException {
+    final AtomicLong ops = new AtomicLong();
+    final AtomicLong sink = new AtomicLong();
+    final CountDownLatch start = new CountDownLatch(1);
+    Thread[] workers = new Thread[threads];
+    for (int t = 0; t < threads; t++) {
+      workers[t] = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            start.await();
+          } catch (InterruptedException e) {
+            return;
+          }
+          long deadline = System.currentTimeMillis() + millis;
+          long count = 0;
+          long sum = 0;
+          while (System.currentTimeMillis() < deadline) {
+            for (int i = 0; i < 64; i++) {
+              sum += work.run(source);
+            }
+            count += 64;
+          }
+          ops.addAndGet(count);
+          sink.addAndGet(sum);
+        }
+      });
+      workers[t].start();
+    }
+    start.countDown();
+    for (Thread worker : workers) {
+      worker.join();
+    }
+    if (sink.get() == 42) {
+      // Keeps the results alive so that the work is not optimized away.
+      System.out.print("");
+    }
+    return ops.get();
+  }
+}
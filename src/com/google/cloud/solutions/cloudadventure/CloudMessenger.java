@@ -22,11 +22,17 @@ import com.google.cloud.solutions.cloudadventure.model.FriendMessage;
 import com.google.cloud.solutions.cloudadventure.model.GameMessage;
 
 import java.io.IOException;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.Map.Entry;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
  * This class manages the sending of various types of messages through Google Cloud Messaging.
+ * Friend pings are sent right away; game pings are handed to {@link NotificationQueue} and
+ * delivered after the request returns.
  */
 public class CloudMessenger {
 
@@ -34,6 +40,16 @@ public class CloudMessenger {
   private static final String API_KEY = << your API key >>;
   private static final DeviceInfoEndpoint endpoint = new DeviceInfoEndpoint();
 
+  /**
+   * The {@link Sender} shared by all pings. It holds no per-message state.
+   */
+  private static final Sender SENDER = new Sender(API_KEY);
+
+  /**
+   * The number of times GCM retries each message, with exponential backoff.
+   */
+  private static final int GCM_RETRIES = 5;
+
   /*
    * NOTE on the following constants: any updates to these will also need to be mirrored in
    * GCMIntentService.java in the corresponding client application.
@@ -57,43 +73,68 @@ public class CloudMessenger {
   /**
    * Sends the message using the Sender object to the registered device.
    *
-   * @param message the message to be sent in the GCM ping to the device.
-   * @param sender the Sender object to be used for ping,
+   * @param msg the message to be sent in the GCM ping to the device.
    * @param deviceInfo the registration id of the device.
    * @return Result the result of the ping.
    * @throws IOException
    */
-  private static Result sendViaGcm(Message msg, Sender sender, DeviceInfo deviceInfo)
-      throws IOException {
-    Result result = sender.send(msg, deviceInfo.getDeviceRegistrationId(), 5);
+  private static Result sendViaGcm(Message msg, DeviceInfo deviceInfo) throws IOException {
+    Result result = SENDER.send(msg, deviceInfo.getDeviceRegistrationId(), GCM_RETRIES);
     LOG.info("Sent ping to device of user: " + deviceInfo.getUserHandle());
     if (result.getMessageId() != null) {
       String canonicalRegId = result.getCanonicalRegistrationId();
       if (canonicalRegId != null) {
-        endpoint.removeDeviceInfo(deviceInfo.getDeviceRegistrationId());
         deviceInfo.setDeviceRegistrationId(canonicalRegId);
-        endpoint.insertDeviceInfo(deviceInfo);
+        endpoint.updateDeviceInfo(deviceInfo);
       }
     } else {
       String error = result.getErrorCodeName();
-      if (error.equals(Constants.ERROR_NOT_REGISTERED)) {
-        endpoint.removeDeviceInfo(deviceInfo.getDeviceRegistrationId());
+      if (Constants.ERROR_NOT_REGISTERED.equals(error)) {
+        endpoint.removeDeviceInfo(deviceInfo.getUserHandle());
       }
     }
 
     return result;
   }
 
+  /**
+   * Sends a message to each of several users, one after the other. The recipients' devices are
+   * looked up with one batch get. Large fan-outs are not sent from a single call: game
+   * notifications are split by {@link NotificationQueue} into tasks of a few recipients each, which
+   * the queue runs in parallel.
+   *
+   * @param messages the message to send to each user, keyed by user handle
+   * @return the result of the ping to each user, in the order of the messages given; users without
+   *         a registered device are left out, and users whose ping failed map to {@code null}
+   */
+  static Map<String, Result> sendToAll(Map<String, Message> messages) {
+    Map<String, DeviceInfo> devices = DeviceInfoEndpoint.getDeviceInfos(messages.keySet());
+    Map<String, Result> results = new LinkedHashMap<String, Result>();
+    for (Entry<String, Message> entry : messages.entrySet()) {
+      String toHandle = entry.getKey();
+      DeviceInfo device = devices.get(toHandle);
+      if (device == null) {
+        LOG.warning("The device was not found in registry for user handle " + toHandle);
+        continue;
+      }
+      try {
+        results.put(toHandle, sendViaGcm(entry.getValue(), device));
+      } catch (IOException e) {
+        LOG.log(Level.WARNING, "Failed to ping user: " + toHandle, e);
+        results.put(toHandle, null);
+      }
+    }
+    return results;
+  }
+
   /**
    * Ping the registered device of the recipient of the invitation.
    *
    * @param message the message to be sent in the GCM ping
    * @param friendMessage contains the information needed for sending and processing the invite
    * @return {@code true} if delivery was successful; {@code false} otherwise
-   * @throws IOException
    */
-  public static boolean pingFriendInvite(String message, FriendMessage friendMessage)
-      throws IOException {
+  public static boolean pingFriendInvite(String message, FriendMessage friendMessage) {
     return pingFriendMessage(message, friendMessage, PING_REASON_FRIEND_INVITE);
   }
 
@@ -102,10 +143,8 @@ public class CloudMessenger {
    *
    * @param message the message to be sent in the GCM ping
    * @param toHandle the user to send the acceptance ping (the sender of the initial friend invite)
-   * @throws IOException
    */
-  public static boolean pingFriendAccept(String message, FriendMessage friendMessage)
-      throws IOException {
+  public static boolean pingFriendAccept(String message, FriendMessage friendMessage) {
     return pingFriendMessage(message, friendMessage, PING_REASON_FRIEND_ACCEPT);
   }
 
@@ -113,7 +152,7 @@ public class CloudMessenger {
    * Ping a message using the {@link FriendMessage}.
    */
   private static boolean pingFriendMessage(
-      String message, FriendMessage friendMessage, String gcmPayloadPingReason) throws IOException {
+      String message, FriendMessage friendMessage, String gcmPayloadPingReason) {
     String toHandle = friendMessage.getTo();
     Message msg = new Message.Builder()
         .collapseKey(friendMessage.getFrom())
@@ -123,16 +162,9 @@ public class CloudMessenger {
         .addData(GCM_PAYLOAD_MESSAGE, message)
         .build();
     if (verifyFields(msg)) {
-      DeviceInfo deviceInfo = endpoint.getDeviceInfo(toHandle);
-      if (deviceInfo != null) {
-        LOG.info("Building friend invite message to send to user: " + toHandle
-            + " from user: " + friendMessage.getFrom());
-        Sender sender = new Sender(API_KEY);
-        sendViaGcm(msg, sender, deviceInfo);
-        return true;
-      } else {
-        LOG.warning("The device was not found in registry for user handle " + toHandle);
-      }
+      LOG.info("Building friend invite message to send to user: " + toHandle
+          + " from user: " + friendMessage.getFrom());
+      return sendToAll(Collections.singletonMap(toHandle, msg)).get(toHandle) != null;
     } else {
       LOG.warning("Empty fields in the GCM Message. No message sent.");
     }
@@ -144,11 +176,9 @@ public class CloudMessenger {
    *
    * @param message the message to be sent in the GCM ping
    * @param gameMessage contains the information needed for sending and processing the invite
-   * @return {@code true} if delivery to all users were successful; {@code false} otherwise
-   * @throws IOException
+   * @return {@code true} if the notification was queued for delivery; {@code false} otherwise
    */
-  public static boolean pingGameInvite(String message, GameMessage gameMessage)
-      throws IOException {
+  public static boolean pingGameInvite(String message, GameMessage gameMessage) {
     return pingGameMessage(message, gameMessage, PING_REASON_GAME_INVITE);
   }
 
@@ -156,10 +186,9 @@ public class CloudMessenger {
    * Ping the registered devices of the recipients of the notification.
    *
    * @param gameMessage contains the information needed for sending and processing the invite
-   * @return {@code true} if delivery to all users were successful; {@code false} otherwise
-   * @throws IOException
+   * @return {@code true} if the notification was queued for delivery; {@code false} otherwise
    */
-  public static boolean pingGameStarted(GameMessage gameMessage) throws IOException {
+  public static boolean pingGameStarted(GameMessage gameMessage) {
     return pingGameMessage("Game has started.", gameMessage, PING_REASON_GAME_STARTED);
   }
 
@@ -168,11 +197,9 @@ public class CloudMessenger {
    *
    * @param message the message to be sent in the GCM ping
    * @param gameMessage contains the information needed for sending and processing the invite
-   * @return {@code true} if delivery to all users were successful; {@code false} otherwise
-   * @throws IOException
+   * @return {@code true} if the notification was queued for delivery; {@code false} otherwise
    */
-  public static boolean pingGameDestroyed(String message, GameMessage gameMessage)
-      throws IOException {
+  public static boolean pingGameDestroyed(String message, GameMessage gameMessage) {
     return pingGameMessage(message, gameMessage, PING_REASON_GAME_DESTROYED);
   }
 
@@ -180,10 +207,9 @@ public class CloudMessenger {
    * Ping the registered devices of the recipients of the notification.
    *
    * @param gameMessage contains the information needed for sending and processing the invite
-   * @return {@code true} if delivery to all users were successful; {@code false} otherwise
-   * @throws IOException
+   * @return {@code true} if the notification was queued for delivery; {@code false} otherwise
    */
-  public static boolean pingGamePlayerJoin(GameMessage gameMessage) throws IOException {
+  public static boolean pingGamePlayerJoin(GameMessage gameMessage) {
     return pingGameMessage("Joining game.", gameMessage, PING_REASON_PLAYER_JOINED);
   }
 
@@ -191,10 +217,9 @@ public class CloudMessenger {
    * Ping the registered devices of the recipients of the notification.
    *
    * @param gameMessage contains the information needed for sending and processing the invite
-   * @return {@code true} if delivery to all users were successful; {@code false} otherwise
-   * @throws IOException
+   * @return {@code true} if the notification was queued for delivery; {@code false} otherwise
    */
-  public static boolean pingGamePlayerLeave(GameMessage gameMessage) throws IOException {
+  public static boolean pingGamePlayerLeave(GameMessage gameMessage) {
     return pingGameMessage("Leaving game.", gameMessage, PING_REASON_PLAYER_LEFT);
   }
 
@@ -202,10 +227,9 @@ public class CloudMessenger {
    * Ping the registered devices of the recipients of the notification.
    *
    * @param gameMessage contains the information needed for sending and processing the invite
-   * @return {@code true} if delivery to all users were successful; {@code false} otherwise
-   * @throws IOException
+   * @return {@code true} if the notification was queued for delivery; {@code false} otherwise
    */
-  public static boolean pingGameEnded(GameMessage gameMessage) throws IOException {
+  public static boolean pingGameEnded(GameMessage gameMessage) {
     return pingGameMessage("Game has ended.", gameMessage, PING_REASON_GAME_ENDED);
   }
 
@@ -216,12 +240,11 @@ public class CloudMessenger {
    * @param gems the number of gems picked up in this game
    * @param mobsKilled the number of mobiles killed in this game
    * @param deaths the number of deaths of player in this game
-   * @return {@code true} if delivery to all users were successful; {@code false} otherwise
-   * @throws IOException
+   * @return {@code true} if the notification was queued for delivery; {@code false} otherwise
    */
   public static boolean pingGamePlayerSendEndScore(
-      GameMessage gameMessage, long gems, long mobsKilled, long deaths) throws IOException {
-    boolean success = false;
+      GameMessage gameMessage, long gems, long mobsKilled, long deaths) {
+    Map<String, Message> messages = new LinkedHashMap<String, Message>();
     for (String toHandle : gameMessage.getTo()) {
       Message msg = new Message.Builder()
           .collapseKey(gameMessage.getFrom())
@@ -235,29 +258,23 @@ public class CloudMessenger {
           .addData("deaths", Long.toString(deaths))
           .build();
       if (verifyFields(msg)) {
-        DeviceInfo deviceInfo = endpoint.getDeviceInfo(toHandle);
-        if (deviceInfo != null) {
-          LOG.info("Building game message to send to user: " + toHandle
-              + " from user: " + gameMessage.getFrom());
-          Sender sender = new Sender(API_KEY);
-          sendViaGcm(msg, sender, deviceInfo);
-          success = true;
-        } else {
-          LOG.warning("The device was not found in registry for user handle " + toHandle);
-        }
+        LOG.info("Building game message to send to user: " + toHandle
+            + " from user: " + gameMessage.getFrom());
+        messages.put(toHandle, msg);
       } else {
         LOG.warning("Empty fields in the GCM Message. No invites sent.");
       }
     }
-    return success;
+    return NotificationQueue.enqueue(gameMessage.getGameId(), PING_REASON_PLAYER_END_SCORE,
+        gameMessage.getEventId(), messages);
   }
 
   /**
    * Ping a message using the {@link GameMessage}.
    */
   public static boolean pingGameMessage(
-      String message, GameMessage gameMessage, String gcmPayloadPingReason) throws IOException {
-    boolean success = false;
+      String message, GameMessage gameMessage, String gcmPayloadPingReason) {
+    Map<String, Message> messages = new LinkedHashMap<String, Message>();
     for (String toHandle : gameMessage.getTo()) {
       Message msg = new Message.Builder()
           .collapseKey(gameMessage.getFrom())
@@ -268,21 +285,15 @@ public class CloudMessenger {
           .addData(GCM_PAYLOAD_MESSAGE, message)
           .build();
       if (verifyFields(msg)) {
-        DeviceInfo deviceInfo = endpoint.getDeviceInfo(toHandle);
-        if (deviceInfo != null) {
-          LOG.info("Building game message to send to user: " + toHandle
-              + " from user: " + gameMessage.getFrom());
-          Sender sender = new Sender(API_KEY);
-          sendViaGcm(msg, sender, deviceInfo);
-          success = true;
-        } else {
-          LOG.warning("The device was not found in registry for user handle " + toHandle);
-        }
+        LOG.info("Building game message to send to user: " + toHandle
+            + " from user: " + gameMessage.getFrom());
+        messages.put(toHandle, msg);
       } else {
         LOG.warning("Empty fields in the GCM Message. No invites sent.");
       }
     }
-    return success;
+    return NotificationQueue.enqueue(
+        gameMessage.getGameId(), gcmPayloadPingReason, gameMessage.getEventId(), messages);
   }
 
   /**
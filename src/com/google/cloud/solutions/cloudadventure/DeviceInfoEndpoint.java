@@ -19,11 +19,21 @@ package com.google.cloud.solutions.cloudadventure;
 import com.google.api.server.spi.config.Api;
 import com.google.api.server.spi.config.ApiMethod;
 import com.google.appengine.api.datastore.Entity;
-import com.google.appengine.api.datastore.EntityNotFoundException;
 import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.memcache.MemcacheService.SetPolicy;
 import com.google.cloud.solutions.cloudadventure.model.DeviceInfo;
+import com.google.cloud.solutions.cloudadventure.util.LocalCache;
 import com.google.cloud.solutions.cloudadventure.util.StorageUtils;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
 import javax.inject.Named;
 
 /**
@@ -32,36 +42,90 @@ import javax.inject.Named;
 @Api(name = "cloudadventure")
 public class DeviceInfoEndpoint {
 
+  private static final String MEMCACHE_KEY_PREFIX = "DeviceInfo/";
+
+  /**
+   * The registration ids read most recently on this instance, keyed by user handle. An empty
+   * string records that the user has no registered device.
+   */
+  private static final LocalCache<String, String> localRegIds =
+      new LocalCache<String, String>(1000, 60, TimeUnit.SECONDS);
+
   @ApiMethod(path = "devices", name = "devices.get")
   public DeviceInfo getDeviceInfo(@Named("userHandle") String userHandle) {
-    Key key = StorageUtils.getDeviceDatastoreKey(userHandle);
-    Entity entity;
-    try {
-      entity = StorageUtils.getDatastore().get(key);
-    } catch (EntityNotFoundException e) {
-      return null;
+    return getDeviceInfos(Collections.singletonList(userHandle)).get(userHandle);
+  }
+
+  /**
+   * Gets the registered devices of several users. Registration ids are read through an in-instance
+   * cache, then Memcache, and only the remaining ones from Datastore with a single batch get.
+   *
+   * @param userHandles the handles of the users
+   * @return a map from user handle to {@link DeviceInfo}, in the order of the handles given, which
+   *         leaves out users without a registered device
+   */
+  protected static Map<String, DeviceInfo> getDeviceInfos(Collection<String> userHandles) {
+    Map<String, String> regIds = new HashMap<String, String>();
+    List<String> memcacheKeys = new ArrayList<String>();
+    for (String userHandle : userHandles) {
+      String regId = localRegIds.get(userHandle);
+      if (regId != null) {
+        regIds.put(userHandle, regId);
+      } else {
+        memcacheKeys.add(getMemcacheKeyString(userHandle));
+      }
+    }
+
+    List<Key> keys = new ArrayList<Key>();
+    if (!memcacheKeys.isEmpty()) {
+      Map<String, Object> cached = StorageUtils.getMemcache().getAll(memcacheKeys);
+      for (String memcacheKey : memcacheKeys) {
+        String userHandle = memcacheKey.substring(MEMCACHE_KEY_PREFIX.length());
+        String regId = (String) cached.get(memcacheKey);
+        if (regId != null) {
+          regIds.put(userHandle, regId);
+          localRegIds.put(userHandle, regId);
+        } else {
+          keys.add(StorageUtils.getDeviceDatastoreKey(userHandle));
+        }
+      }
     }
-    DeviceInfo device = new DeviceInfo();
-    device.setUserHandle(entity.getKey().getName());
-    device.setDeviceRegistrationId((String) entity.getProperty("reg_id"));
-    return device;
+
+    if (!keys.isEmpty()) {
+      Map<Key, Entity> entities = StorageUtils.getDatastore().get(keys);
+      Map<String, String> backfill = new HashMap<String, String>();
+      for (Key key : keys) {
+        Entity entity = entities.get(key);
+        String regId = entity == null ? "" : toCachedRegId((String) entity.getProperty("reg_id"));
+        regIds.put(key.getName(), regId);
+        localRegIds.put(key.getName(), regId);
+        backfill.put(getMemcacheKeyString(key.getName()), regId);
+      }
+      StorageUtils.getMemcache().putAll(backfill, null, SetPolicy.ADD_ONLY_IF_NOT_PRESENT);
+    }
+
+    Map<String, DeviceInfo> devices = new LinkedHashMap<String, DeviceInfo>();
+    for (String userHandle : userHandles) {
+      String regId = regIds.get(userHandle);
+      if (regId != null && !regId.isEmpty()) {
+        DeviceInfo device = new DeviceInfo();
+        device.setUserHandle(userHandle);
+        device.setDeviceRegistrationId(regId);
+        devices.put(userHandle, device);
+      }
+    }
+    return devices;
   }
 
   @ApiMethod(path = "devices", name = "devices.insert")
   public DeviceInfo insertDeviceInfo(DeviceInfo deviceInfo) {
-    Key key = StorageUtils.getDeviceDatastoreKey(deviceInfo.getUserHandle());
-    Entity entity = new Entity(key);
-    entity.setProperty("reg_id", deviceInfo.getDeviceRegistrationId());
-    StorageUtils.getDatastore().put(entity);
+    writeDeviceInfo(deviceInfo);
     return deviceInfo;
   }
 
   @ApiMethod(path = "devices", name = "devices.update")
   public DeviceInfo updateDeviceInfo(DeviceInfo deviceInfo) {
-    Key key = StorageUtils.getDeviceDatastoreKey(deviceInfo.getUserHandle());
-    Entity entity = new Entity(key);
-    entity.setProperty("reg_id", deviceInfo.getDeviceRegistrationId());
-    StorageUtils.getDatastore().put(entity);
+    writeDeviceInfo(deviceInfo);
     return deviceInfo;
   }
 
@@ -69,5 +133,29 @@ public class DeviceInfoEndpoint {
   public void removeDeviceInfo(@Named("userHandle") String userHandle) {
     Key key = StorageUtils.getDeviceDatastoreKey(userHandle);
     StorageUtils.getDatastore().delete(key);
+    StorageUtils.getMemcache().put(getMemcacheKeyString(userHandle), "");
+    localRegIds.invalidate(userHandle);
+  }
+
+  /**
+   * Writes the registration through to Datastore and Memcache, and drops this instance's cached
+   * copy. Other instances see the change once their cached copy expires.
+   */
+  private static void writeDeviceInfo(DeviceInfo deviceInfo) {
+    Key key = StorageUtils.getDeviceDatastoreKey(deviceInfo.getUserHandle());
+    Entity entity = new Entity(key);
+    entity.setProperty("reg_id", deviceInfo.getDeviceRegistrationId());
+    StorageUtils.getDatastore().put(entity);
+    StorageUtils.getMemcache().put(getMemcacheKeyString(deviceInfo.getUserHandle()),
+        toCachedRegId(deviceInfo.getDeviceRegistrationId()));
+    localRegIds.invalidate(deviceInfo.getUserHandle());
+  }
+
+  private static String toCachedRegId(String regId) {
+    return regId == null ? "" : regId;
+  }
+
+  private static String getMemcacheKeyString(String userHandle) {
+    return MEMCACHE_KEY_PREFIX + userHandle;
   }
 }
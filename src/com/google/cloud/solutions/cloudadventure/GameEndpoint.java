@@ -21,13 +21,11 @@ import com.google.api.server.spi.config.ApiMethod;
 import com.google.api.server.spi.config.ApiMethod.HttpMethod;
 import com.google.cloud.solutions.cloudadventure.model.Game;
 import com.google.cloud.solutions.cloudadventure.model.GameMessage;
-import com.google.cloud.solutions.cloudadventure.model.Player;
 import com.google.cloud.solutions.cloudadventure.model.world.Maze;
 import com.google.cloud.solutions.cloudadventure.model.world.Maze.MazeType;
+import com.google.cloud.solutions.cloudadventure.util.PendingWrites;
 import com.google.cloud.solutions.cloudadventure.util.StorageUtils;
 
-import java.io.IOException;
-import java.util.ArrayList;
 import java.util.List;
 import java.util.UUID;
 import java.util.logging.Logger;
@@ -42,14 +40,6 @@ public class GameEndpoint {
 
   private static final Logger LOG = Logger.getLogger(GameEndpoint.class.getName());
 
-  private ArrayList<String> getHandles(List<Player> players) {
-    ArrayList<String> handles = new ArrayList<String>();
-    for (Player player : players) {
-      handles.add(player.getHandle());
-    }
-    return handles;
-  }
-
   /**
    * Creates a new game with a map using the given MazeType.
    * 
@@ -60,8 +50,7 @@ public class GameEndpoint {
   public Game createGame(@Named("mazeType") final String mazeTypeName) {
     MazeType mazeType = MazeType.valueOf(mazeTypeName);
     Game game = Game.create(UUID.randomUUID().toString().replaceAll("[^A-Za-z0-9]", ""));
-    Maze gameMaze = new Maze(mazeType);
-    game.setMaze(gameMaze);
+    game.setMaze(new Maze(mazeType));
     StorageUtils.writeGame(game);
     return game;
   }
@@ -73,11 +62,7 @@ public class GameEndpoint {
    */
   @ApiMethod(path = "games/invite", name = "games.invite", httpMethod = HttpMethod.POST)
   public void sendGameInvite(final GameMessage msg) {
-    try {
-      CloudMessenger.pingGameInvite("Game invite from " + msg.getFrom() + ".", msg);
-    } catch (IOException e) {
-      LOG.warning(e.getMessage());
-    }
+    CloudMessenger.pingGameInvite("Game invite from " + msg.getFrom() + ".", msg);
   }
 
   /**
@@ -88,15 +73,19 @@ public class GameEndpoint {
    */
   @ApiMethod(path = "games/start", name = "games.start", httpMethod = HttpMethod.POST)
   public void start(@Named("gameId") final String gameId, @Named("from") final String from) {
-    Game game = StorageUtils.getGame(gameId);
-    game.start();
-    StorageUtils.writeGame(game);
-    List<String> to = getHandles(PlayerEndpoint.getPlayersInGame(gameId));
-    try {
-      CloudMessenger.pingGameStarted(new GameMessage().setGameId(gameId).setFrom(from).setTo(to));
-    } catch (IOException e) {
-      LOG.warning(e.getMessage());
+    Game game = StorageUtils.updateGame(gameId, new StorageUtils.Mutation<Game>() {
+      @Override
+      public Game apply(Game game) {
+        game.start();
+        return game;
+      }
+    });
+    if (game == null) {
+      LOG.info("No Game with ID " + gameId + " could be found.");
+      return;
     }
+    List<String> to = PlayerEndpoint.getHandlesInGame(gameId);
+    CloudMessenger.pingGameStarted(new GameMessage().setGameId(gameId).setFrom(from).setTo(to));
   }
 
   /**
@@ -108,19 +97,12 @@ public class GameEndpoint {
    */
   @ApiMethod(path = "games/cancel", name = "games.cancel", httpMethod = HttpMethod.POST)
   public void cancelGame(@Named("gameId") final String gameId, @Named("from") final String from) {
-    StorageUtils.destroyGame(gameId);
-    List<Player> toPlayers = PlayerEndpoint.getPlayersInGame(gameId);
-    List<String> handles = getHandles(toPlayers);
-    try {
-      CloudMessenger.pingGameDestroyed(
-          "The creator of this game " + from + " has abandoned the game.",
-          new GameMessage().setGameId(gameId).setFrom(from).setTo(handles));
-    } catch (IOException e) {
-      LOG.warning(e.getMessage());
-    }
-    for (String handle : handles) {
-      StorageUtils.destroyPlayer(handle);
-    }
+    List<String> handles = PlayerEndpoint.getHandlesInGame(gameId);
+    PendingWrites writes = StorageUtils.destroyGameAsync(gameId, handles);
+    CloudMessenger.pingGameDestroyed(
+        "The creator of this game " + from + " has abandoned the game.",
+        new GameMessage().setGameId(gameId).setFrom(from).setTo(handles));
+    writes.join();
   }
 
   /**
@@ -131,12 +113,8 @@ public class GameEndpoint {
    */
   @ApiMethod(path = "games/end", name = "games.end", httpMethod = HttpMethod.PUT)
   public void end(@Named("gameId") final String gameId, @Named("from") final String from) {
-    ArrayList<String> handles = getHandles(PlayerEndpoint.getPlayersInGame(gameId));
-    try {
-      CloudMessenger.pingGameEnded(
-          new GameMessage().setGameId(gameId).setFrom(from).setTo(handles));
-    } catch (IOException e) {
-      LOG.warning(e.getMessage());
-    }
+    List<String> handles = PlayerEndpoint.getHandlesInGame(gameId);
+    CloudMessenger.pingGameEnded(
+        new GameMessage().setGameId(gameId).setFrom(from).setTo(handles));
   }
 }
@@ -18,6 +18,8 @@ package com.google.cloud.solutions.cloudadventure;
 
 import com.google.cloud.solutions.cloudadventure.model.FriendMessage;
 import com.google.cloud.solutions.cloudadventure.model.GameUser;
+import com.google.cloud.solutions.cloudadventure.util.PendingWrites;
+import com.google.cloud.solutions.cloudadventure.util.ShardedCounter;
 import com.google.cloud.solutions.cloudadventure.util.StorageUtils;
 
 import com.google.api.server.spi.config.Api;
@@ -26,12 +28,12 @@ import com.google.api.server.spi.config.ApiMethod.HttpMethod;
 import com.google.appengine.api.datastore.Entity;
 import com.google.appengine.api.datastore.EntityNotFoundException;
 import com.google.appengine.api.datastore.Key;
-import com.google.appengine.api.datastore.Query;
-import com.google.appengine.api.datastore.Query.Filter;
-import com.google.appengine.api.datastore.Query.FilterOperator;
 
-import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.logging.Logger;
 
 import javax.inject.Named;
@@ -44,6 +46,19 @@ public class GameUserEndpoint {
 
   private static final Logger LOG = Logger.getLogger(GameUserEndpoint.class.getName());
 
+  private static final String STAT_SHARDS_PROPERTY = "cloudadventure.userstats.shards";
+
+  /**
+   * The lifetime statistics of users, keyed by account. They are kept in sharded counters rather
+   * than on the User entity, so that players finishing games at the same time do not contend on
+   * it. The totals still on User entities are those from before the counters were introduced, and
+   * are added to the counters.
+   */
+  private static final ShardedCounter USER_STATS =
+      new ShardedCounter("UserStatShard", Integer.getInteger(STAT_SHARDS_PROPERTY, 10));
+  private static final List<String> STAT_NAMES =
+      Arrays.asList("total_games", "total_gems", "total_mobs_killed");
+
   /**
    * Creates a new {@link GameUser}. The account string is tied permanently to this user and
    * functions as its key. Inserts the user into Datastore and returns the new instance of it.
@@ -65,13 +80,8 @@ public class GameUserEndpoint {
    */
   @ApiMethod(path = "users/invite", name = "users.inviteFriend", httpMethod = HttpMethod.POST)
   public FriendMessage sendFriendInvite(final FriendMessage friendMessage) {
-    boolean success = false;
-    try {
-      success = CloudMessenger.pingFriendInvite(
-          "Friend invite from " + friendMessage.getFrom() + ".", friendMessage);
-    } catch (IOException e) {
-      LOG.warning(e.getMessage());
-    }
+    boolean success = CloudMessenger.pingFriendInvite(
+        "Friend invite from " + friendMessage.getFrom() + ".", friendMessage);
     return success ? friendMessage : null;
   }
 
@@ -85,29 +95,25 @@ public class GameUserEndpoint {
   public void acceptFriendship(final FriendMessage friendMessage) {
     String fromHandle = friendMessage.getFrom();
     String toHandle = friendMessage.getTo();
-    try {
-      GameUser fromUser = getUserByHandle(fromHandle);
-      GameUser toUser = getUserByHandle(toHandle);
-      if (fromUser.getFriends() == null) {
-        fromUser.setFriends(new ArrayList<String>());
-      }
-      fromUser.getFriends().add(toHandle);
-      updateUser(fromUser);
-      if (toUser.getFriends() == null) {
-        toUser.setFriends(new ArrayList<String>());
-      }
-      toUser.getFriends().add(fromHandle);
-      updateUser(toUser);
-
-      CloudMessenger.pingFriendAccept(
-          fromHandle + " has accepted your friend invite.", friendMessage);
-    } catch (IOException e) {
-      LOG.warning(e.getMessage());
+    GameUser fromUser = getUserByHandle(fromHandle);
+    GameUser toUser = getUserByHandle(toHandle);
+    if (fromUser.getFriends() == null) {
+      fromUser.setFriends(new ArrayList<String>());
+    }
+    fromUser.getFriends().add(toHandle);
+    updateUser(fromUser);
+    if (toUser.getFriends() == null) {
+      toUser.setFriends(new ArrayList<String>());
     }
+    toUser.getFriends().add(fromHandle);
+    updateUser(toUser);
+
+    CloudMessenger.pingFriendAccept(
+        fromHandle + " has accepted your friend invite.", friendMessage);
   }
 
   /**
-   * Updates the stored user with the scores from their most recently finished game.
+   * Adds the scores from their most recently finished game to the lifetime statistics of the user.
    *
    * @param handle
    * @param gemsCollected
@@ -115,17 +121,16 @@ public class GameUserEndpoint {
    */
   protected static void updateUserWithPostGameScores(
       final String handle, long gemsCollected, long mobsKilled) {
-    Filter userHandleFilter =
-        new Query.FilterPredicate("user_handle", FilterOperator.EQUAL, handle);
-    Query q = new Query("User").setFilter(userHandleFilter);
-    Entity entity = StorageUtils.getDatastore().prepare(q).asSingleEntity();
-    entity.setProperty("total_games",
-        (Long) entity.getProperty("total_gems") + 1);
-    entity.setProperty("total_gems",
-        (Long) entity.getProperty("total_gems") + gemsCollected);
-    entity.setProperty("total_mobs_killed",
-        (Long) entity.getProperty("total_mobs_killed") + mobsKilled);
-    StorageUtils.getDatastore().put(entity);
+    String account = StorageUtils.getAccountByHandle(handle);
+    if (account == null) {
+      LOG.warning("No User with handle " + handle + " could be found to add scores to.");
+      return;
+    }
+    Map<String, Long> deltas = new HashMap<String, Long>();
+    deltas.put("total_games", 1L);
+    deltas.put("total_gems", gemsCollected);
+    deltas.put("total_mobs_killed", mobsKilled);
+    USER_STATS.increment(account, deltas);
   }
 
   /**
@@ -134,7 +139,6 @@ public class GameUserEndpoint {
    * @param account the account string of the user
    * @return the {@link GameUser}
    */
-  @SuppressWarnings("unchecked")
   @ApiMethod(path = "users/{account}", name = "users.get")
   public GameUser getUser(@Named("account") String account) {
     Key key = StorageUtils.getUserDatastoreKey(account);
@@ -144,14 +148,7 @@ public class GameUserEndpoint {
     } catch (EntityNotFoundException e) {
       return null;
     }
-    GameUser user = new GameUser();
-    user.setAccount(entity.getKey().getName());
-    user.setHandle((String) entity.getProperty("user_handle"));
-    user.setFriends((ArrayList<String>) entity.getProperty("friends"));
-    user.setTotalGames((Long) entity.getProperty("total_games"));
-    user.setTotalGems((Long) entity.getProperty("total_gems"));
-    user.setTotalMobsKilled((Long) entity.getProperty("total_mobs_killed"));
-    return user;
+    return fromUserEntity(entity);
   }
 
   /**
@@ -160,34 +157,52 @@ public class GameUserEndpoint {
    * @param handle the handle of the user
    * @return the {@link GameUser}
    */
-  @SuppressWarnings("unchecked")
   @ApiMethod(path = "users/name/{handle}", name = "users.getByHandle")
   public GameUser getUserByHandle(@Named("handle") String handle) {
-    Filter userHandleFilter =
-        new Query.FilterPredicate("user_handle", FilterOperator.EQUAL, handle);
-    Query q = new Query("User").setFilter(userHandleFilter);
-    Entity entity = StorageUtils.getDatastore().prepare(q).asSingleEntity();
-    if (entity == null) {
+    String account = StorageUtils.getAccountByHandle(handle);
+    if (account == null) {
       return null;
     }
+    GameUser user = getUser(account);
+    // The user may since have changed to another handle.
+    return user != null && handle.equals(user.getHandle()) ? user : null;
+  }
+
+  /**
+   * Builds a user from its entity, with its lifetime statistics added up from the counters.
+   */
+  @SuppressWarnings("unchecked")
+  private static GameUser fromUserEntity(Entity entity) {
     GameUser user = new GameUser();
     user.setAccount(entity.getKey().getName());
     user.setHandle((String) entity.getProperty("user_handle"));
     user.setFriends((ArrayList<String>) entity.getProperty("friends"));
-    user.setTotalGames((Long) entity.getProperty("total_games"));
-    user.setTotalGems((Long) entity.getProperty("total_gems"));
-    user.setTotalMobsKilled((Long) entity.getProperty("total_mobs_killed"));
+    Map<String, Long> stats = USER_STATS.get(user.getAccount(), STAT_NAMES);
+    user.setTotalGames(getLong(entity, "total_games") + stats.get("total_games"));
+    user.setTotalGems(getLong(entity, "total_gems") + stats.get("total_gems"));
+    user.setTotalMobsKilled(
+        getLong(entity, "total_mobs_killed") + stats.get("total_mobs_killed"));
     return user;
   }
 
+  private static long getLong(Entity entity, String propertyName) {
+    Long value = (Long) entity.getProperty(propertyName);
+    return value == null ? 0 : value;
+  }
+
   /**
    * Inserts the user into the Datastore.
    * 
    * @param user the user to be inserted
-   * @return the {@link GameUser} that was inserted
+   * @return the {@link GameUser} that was inserted, or {@code null} if its handle was not claimed
+   *         or is held by another user
    */
   @ApiMethod(path = "users", name = "users.insert")
   public GameUser insertUser(GameUser user) {
+    if (user.getHandle() != null
+        && !StorageUtils.linkHandle(user.getHandle(), user.getAccount())) {
+      return null;
+    }
     Key key = StorageUtils.getUserDatastoreKey(user.getAccount());
     Entity entity = new Entity(key);
     entity.setProperty("user_handle", user.getHandle());
@@ -200,21 +215,36 @@ public class GameUserEndpoint {
   }
 
   /**
-   * Updates the user with the same account in the Datastore. Uses HTTP PUT.
+   * Updates the user with the same account in the Datastore. Uses HTTP PUT. The lifetime statistics
+   * of an existing user are kept by the server, so those given are ignored.
    * 
    * @param user the user to be updated
-   * @return the {@link GameUser} that was updated
+   * @return the {@link GameUser} that was updated, or {@code null} if its new handle was not
+   *         claimed or is held by another user
    */
   @ApiMethod(path = "users", name = "users.update")
   public GameUser updateUser(GameUser user) {
     Key key = StorageUtils.getUserDatastoreKey(user.getAccount());
-    Entity entity = new Entity(key);
+    Entity entity;
+    try {
+      entity = StorageUtils.getDatastore().get(key);
+    } catch (EntityNotFoundException e) {
+      entity = new Entity(key);
+      entity.setProperty("total_games", user.getTotalGames());
+      entity.setProperty("total_gems", user.getTotalGems());
+      entity.setProperty("total_mobs_killed", user.getTotalMobsKilled());
+    }
+    String oldHandle = (String) entity.getProperty("user_handle");
+    boolean handleChanged = user.getHandle() != null && !user.getHandle().equals(oldHandle);
+    if (handleChanged && !StorageUtils.linkHandle(user.getHandle(), user.getAccount())) {
+      return null;
+    }
     entity.setProperty("user_handle", user.getHandle());
     entity.setUnindexedProperty("friends", user.getFriends());
-    entity.setProperty("total_games", user.getTotalGames());
-    entity.setProperty("total_gems", user.getTotalGems());
-    entity.setProperty("total_mobs_killed", user.getTotalMobsKilled());
     StorageUtils.getDatastore().put(entity);
+    if (handleChanged && oldHandle != null) {
+      StorageUtils.unlinkHandle(oldHandle, user.getAccount());
+    }
     return user;
   }
 
@@ -226,6 +256,8 @@ public class GameUserEndpoint {
   @ApiMethod(path = "users/{account}", name = "users.remove")
   public void removeUser(@Named("account") String account) {
     Key key = StorageUtils.getUserDatastoreKey(account);
+    PendingWrites writes = USER_STATS.deleteAsync(account, STAT_NAMES);
     StorageUtils.getDatastore().delete(key);
+    writes.join();
   }
 }
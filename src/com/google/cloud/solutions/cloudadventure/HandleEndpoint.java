@@ -19,13 +19,15 @@ package com.google.cloud.solutions.cloudadventure;
 import com.google.api.server.spi.config.Api;
 import com.google.api.server.spi.config.ApiMethod;
 import com.google.api.server.spi.config.ApiMethod.HttpMethod;
-import com.google.appengine.api.datastore.Entity;
-import com.google.appengine.api.datastore.EntityNotFoundException;
-import com.google.appengine.api.datastore.Key;
-import com.google.appengine.api.datastore.Transaction;
+import com.google.api.server.spi.config.Nullable;
 import com.google.cloud.solutions.cloudadventure.model.Handle;
-import com.google.cloud.solutions.cloudadventure.util.StorageUtils;
+import com.google.cloud.solutions.cloudadventure.model.HandleAvailability;
+import com.google.cloud.solutions.cloudadventure.util.HandleRegistry;
 
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
 import java.util.logging.Logger;
 
 import javax.inject.Named;
@@ -39,7 +41,14 @@ public class HandleEndpoint {
   private static final Logger LOG = Logger.getLogger(HandleEndpoint.class.getName());
 
   /**
-   * Checks for user handle uniqueness within a transaction.
+   * The most handles checked, and the most suggestions made, in one call.
+   */
+  private static final int MAX_CHECKED_HANDLES = 100;
+  private static final int MAX_SUGGESTIONS = 10;
+
+  /**
+   * Claims a user handle, which must be unique. See {@link HandleRegistry} for how concurrent and
+   * repeated claims are kept cheap.
    * 
    * @param handle
    * @return {@link Handle} instance if a new unique handle has been successfully created
@@ -49,28 +58,62 @@ public class HandleEndpoint {
   @ApiMethod(path = "handles/claim/{handle}", name = "handles.claim", httpMethod = HttpMethod.POST)
   public Handle claimHandle(@Named("handle") final String handle) {
     Handle handleObject = new Handle();
-    Key key = StorageUtils.getHandleDatastoreKey(handle);
-    Entity entity = new Entity(key);
-    Transaction tx = StorageUtils.getDatastore().beginTransaction();
     try {
-      // If handle already exists, set return Handle with special character.
-      StorageUtils.getDatastore().get(key);
-      handleObject.setHandle("!");
-      tx.commit();
-    } catch (EntityNotFoundException e) {
-      // If handle is unique, set return handle with handle name. Puts new Handle in Datastore.
-      StorageUtils.getDatastore().put(entity);
-      handleObject.setHandle(handle);
-      tx.commit();
+      // If the handle already exists, set the returned Handle to the special character.
+      handleObject.setHandle(HandleRegistry.claim(handle) ? handle : "!");
     } catch (Exception e) {
       // If some other exception occurs, return a null.
       LOG.warning(e.getMessage());
       return null;
-    } finally {
-      if (tx.isActive()) {
-        tx.rollback();
-      }
     }
     return handleObject;
   }
+
+  /**
+   * Checks which of several candidate handles are available, without claiming any, with one batch
+   * lookup. Optionally suggests other available handles, made from the first candidate.
+   * 
+   * @param handles the candidate handles, at most {@value #MAX_CHECKED_HANDLES}
+   * @param suggestions the number of other available handles to suggest, at most
+   *        {@value #MAX_SUGGESTIONS}; none if not given
+   * @return {@link HandleAvailability} with the candidates split into available and taken, and the
+   *         suggestions if any were asked for
+   *         {@code null} if no handles or too many were given, or an exception has occurred
+   */
+  @ApiMethod(path = "handles/check", name = "handles.check", httpMethod = HttpMethod.POST)
+  public HandleAvailability checkHandles(@Named("handles") final List<String> handles,
+      @Nullable @Named("suggestions") final Integer suggestions) {
+    if (handles == null || handles.isEmpty()) {
+      LOG.warning("No handles to check.");
+      return null;
+    }
+    Set<String> candidates = new LinkedHashSet<String>(handles);
+    candidates.remove(null);
+    if (candidates.isEmpty() || candidates.size() > MAX_CHECKED_HANDLES) {
+      LOG.warning("Wrong number of handles to check: " + candidates.size());
+      return null;
+    }
+    HandleAvailability availability = new HandleAvailability();
+    try {
+      Set<String> found = HandleRegistry.findTaken(candidates);
+      List<String> available = new ArrayList<String>();
+      List<String> taken = new ArrayList<String>();
+      for (String candidate : candidates) {
+        (found.contains(candidate) ? taken : available).add(candidate);
+      }
+      availability.setAvailable(available);
+      availability.setTaken(taken);
+
+      int count = suggestions == null ? 0 : Math.min(suggestions, MAX_SUGGESTIONS);
+      if (count > 0) {
+        availability.setSuggestions(
+            HandleRegistry.suggest(candidates.iterator().next(), count));
+      }
+    } catch (Exception e) {
+      // If some exception occurs, return a null.
+      LOG.warning(e.getMessage());
+      return null;
+    }
+    return availability;
+  }
 }
@@ -0,0 +1,267 @@
+/*
+ * Copyright 2013 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package com.google.cloud.solutions.cloudadventure;
+
+import com.google.android.gcm.server.Message;
+import com.google.android.gcm.server.Result;
+import com.google.appengine.api.ThreadManager;
+import com.google.appengine.api.memcache.Expiration;
+import com.google.appengine.api.memcache.MemcacheService.SetPolicy;
+import com.google.appengine.api.taskqueue.DeferredTask;
+import com.google.appengine.api.taskqueue.QueueFactory;
+import com.google.appengine.api.taskqueue.TaskOptions;
+import com.google.cloud.solutions.cloudadventure.util.StorageUtils;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * This class queues game notifications for delivery through Google Cloud Messaging outside of the
+ * request that triggers them, so that endpoints return without waiting on GCM.
+ * <p>
+ * Notifications are delivered by a worker which sends one batch of at most
+ * {@value #MAX_RECIPIENTS_PER_TASK} recipients per queued task and re-queues only the recipients
+ * whose ping failed, with exponential backoff. The queue runs the tasks of a large fan-out in
+ * parallel.
+ * <p>
+ * A notification is dropped if one for the same game, reason, event and recipient was queued
+ * within the last {@value #DEDUPE_SECONDS} seconds, so that an event submitted again, for example
+ * by a retried request, is notified once. Notifications without an event ID are keyed on the game,
+ * reason and recipient alone, which suits the events that happen once per game. If Memcache cannot
+ * be reached, nothing is treated as a duplicate.
+ * <p>
+ * The backend is chosen with the {@value #BACKEND_PROPERTY} system property in
+ * appengine-web.xml: {@code taskqueue} (the default) uses the {@value #QUEUE_NAME} push queue,
+ * which survives instance restarts; {@code executor} runs the worker on an in-process background
+ * thread, for local testing only.
+ */
+public class NotificationQueue {
+
+  private static final Logger LOG = Logger.getLogger(NotificationQueue.class.getName());
+
+  private static final String BACKEND_PROPERTY = "cloudadventure.notifications.backend";
+  private static final String QUEUE_NAME = "notifications";
+
+  /**
+   * How long a queued notification suppresses those for the same event.
+   */
+  private static final int DEDUPE_SECONDS = 60;
+
+  /**
+   * The largest number of recipients pinged, one after the other, by a single task.
+   */
+  private static final int MAX_RECIPIENTS_PER_TASK = 10;
+
+  /**
+   * The number of times delivery to a recipient is attempted before giving up.
+   */
+  private static final int MAX_ATTEMPTS = 5;
+
+  /**
+   * The delay before the first retry; each later retry waits twice as long as the previous one.
+   */
+  private static final long RETRY_DELAY_MILLIS = 2000;
+
+  private static final Backend backend = initBackend();
+
+  /**
+   * Where delivery tasks are run.
+   */
+  private interface Backend {
+    void enqueue(Delivery delivery, long delayMillis);
+  }
+
+  private static class TaskQueueBackend implements Backend {
+    @Override
+    public void enqueue(Delivery delivery, long delayMillis) {
+      QueueFactory.getQueue(QUEUE_NAME)
+          .add(TaskOptions.Builder.withPayload(delivery).countdownMillis(delayMillis));
+    }
+  }
+
+  private static class ExecutorBackend implements Backend {
+    private final ScheduledExecutorService executor =
+        Executors.newSingleThreadScheduledExecutor(ThreadManager.backgroundThreadFactory());
+
+    @Override
+    public void enqueue(Delivery delivery, long delayMillis) {
+      executor.schedule(delivery, delayMillis, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  private static Backend initBackend() {
+    String name = System.getProperty(BACKEND_PROPERTY, "taskqueue");
+    if ("executor".equals(name)) {
+      return new ExecutorBackend();
+    }
+    if (!"taskqueue".equals(name)) {
+      LOG.warning("Unknown notification backend " + name + "; using the task queue.");
+    }
+    return new TaskQueueBackend();
+  }
+
+  /**
+   * Queues a notification to several users of a game.
+   *
+   * @param gameId the ID of the game the notification is about
+   * @param reason the reason for the notification, as sent in the GCM payload
+   * @param eventId the ID of the event the notification is about, or {@code null} if there is at
+   *        most one such event per game
+   * @param messages the message to send to each user, keyed by user handle
+   * @return {@code true} if the notification was queued for at least one user, {@code false} if
+   *         all were duplicates or queuing failed
+   */
+  static boolean enqueue(
+      String gameId, String reason, String eventId, Map<String, Message> messages) {
+    Map<String, String> dedupeKeys = new LinkedHashMap<String, String>();
+    for (String handle : messages.keySet()) {
+      dedupeKeys.put(handle, "Notification/" + gameId + "/" + reason + "/"
+          + (eventId == null ? "" : eventId) + "/" + handle);
+    }
+    Set<String> claimed = dedupeKeys.isEmpty() ? Collections.<String>emptySet()
+        : StorageUtils.getMemcache().putAll(
+            toDedupeValues(dedupeKeys), Expiration.byDeltaSeconds(DEDUPE_SECONDS),
+            SetPolicy.ADD_ONLY_IF_NOT_PRESENT);
+    // A key which was not added is either held by an earlier notification, or Memcache failed; only
+    // the keys which can be read back are duplicates.
+    List<String> unclaimed = new ArrayList<String>();
+    for (String dedupeKey : dedupeKeys.values()) {
+      if (!claimed.contains(dedupeKey)) {
+        unclaimed.add(dedupeKey);
+      }
+    }
+    Map<String, Object> held = unclaimed.isEmpty()
+        ? Collections.<String, Object>emptyMap() : StorageUtils.getMemcache().getAll(unclaimed);
+
+    LinkedHashMap<String, Message> fresh = new LinkedHashMap<String, Message>();
+    for (Entry<String, Message> entry : messages.entrySet()) {
+      String dedupeKey = dedupeKeys.get(entry.getKey());
+      if (held.containsKey(dedupeKey)) {
+        LOG.info("Dropping duplicate " + reason + " notification to user: " + entry.getKey());
+        continue;
+      }
+      fresh.put(entry.getKey(), entry.getValue());
+      if (!claimed.contains(dedupeKey)) {
+        // Not claimed, so not to be released if queuing fails.
+        dedupeKeys.remove(entry.getKey());
+      }
+    }
+    boolean queued = false;
+    LinkedHashMap<String, Message> batch = new LinkedHashMap<String, Message>();
+    for (Entry<String, Message> entry : fresh.entrySet()) {
+      batch.put(entry.getKey(), entry.getValue());
+      if (batch.size() == MAX_RECIPIENTS_PER_TASK) {
+        queued |= enqueueBatch(gameId, reason, batch, dedupeKeys);
+        batch = new LinkedHashMap<String, Message>();
+      }
+    }
+    if (!batch.isEmpty()) {
+      queued |= enqueueBatch(gameId, reason, batch, dedupeKeys);
+    }
+    return queued;
+  }
+
+  /**
+   * @return a map whose keys are the dedupe keys given, all mapped to {@code true}
+   */
+  private static Map<String, Boolean> toDedupeValues(Map<String, String> dedupeKeys) {
+    Map<String, Boolean> values = new HashMap<String, Boolean>();
+    for (String dedupeKey : dedupeKeys.values()) {
+      values.put(dedupeKey, Boolean.TRUE);
+    }
+    return values;
+  }
+
+  /**
+   * Queues one task for a batch of recipients.
+   *
+   * @param dedupeKeys the deduplication keys claimed for the recipients, keyed by user handle
+   * @return {@code true} if the task was queued
+   */
+  private static boolean enqueueBatch(String gameId, String reason,
+      LinkedHashMap<String, Message> batch, Map<String, String> dedupeKeys) {
+    try {
+      backend.enqueue(new Delivery(gameId, reason, batch, 0), 0);
+      return true;
+    } catch (RuntimeException e) {
+      LOG.log(Level.WARNING, "Failed to queue " + reason + " notification.", e);
+      // Nothing was queued for these recipients, so let the event be submitted again.
+      List<String> keys = new ArrayList<String>();
+      for (String handle : batch.keySet()) {
+        if (dedupeKeys.containsKey(handle)) {
+          keys.add(dedupeKeys.get(handle));
+        }
+      }
+      if (!keys.isEmpty()) {
+        StorageUtils.getMemcache().deleteAll(keys);
+      }
+      return false;
+    }
+  }
+
+  /**
+   * The worker which delivers one batch of messages and re-queues the ones that failed.
+   */
+  private static class Delivery implements DeferredTask {
+
+    private static final long serialVersionUID = 1L;
+
+    private final String gameId;
+    private final String reason;
+    private final LinkedHashMap<String, Message> messages;
+    private final int attempt;
+
+    Delivery(String gameId, String reason, LinkedHashMap<String, Message> messages, int attempt) {
+      this.gameId = gameId;
+      this.reason = reason;
+      this.messages = messages;
+      this.attempt = attempt;
+    }
+
+    @Override
+    public void run() {
+      Map<String, Result> results = CloudMessenger.sendToAll(messages);
+      LinkedHashMap<String, Message> failed = new LinkedHashMap<String, Message>();
+      for (Entry<String, Result> result : results.entrySet()) {
+        if (result.getValue() == null) {
+          failed.put(result.getKey(), messages.get(result.getKey()));
+        }
+      }
+      if (failed.isEmpty()) {
+        return;
+      }
+      if (attempt + 1 >= MAX_ATTEMPTS) {
+        LOG.warning("Giving up on " + reason + " notification for game " + gameId + " to users: "
+            + failed.keySet());
+        return;
+      }
+      backend.enqueue(new Delivery(gameId, reason, failed, attempt + 1),
+          RETRY_DELAY_MILLIS << attempt);
+    }
+  }
+}
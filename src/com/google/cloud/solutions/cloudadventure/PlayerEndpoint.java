@@ -20,18 +20,19 @@ import com.google.api.server.spi.config.Api;
 import com.google.api.server.spi.config.ApiMethod;
 import com.google.api.server.spi.config.ApiMethod.HttpMethod;
 import com.google.appengine.api.datastore.Entity;
-import com.google.appengine.api.datastore.FetchOptions;
 import com.google.appengine.api.datastore.Query;
 import com.google.appengine.api.datastore.Query.Filter;
 import com.google.appengine.api.datastore.Query.FilterOperator;
+import com.google.cloud.solutions.cloudadventure.model.ActionResult;
 import com.google.cloud.solutions.cloudadventure.model.Game;
 import com.google.cloud.solutions.cloudadventure.model.GameMessage;
+import com.google.cloud.solutions.cloudadventure.model.GameRoster;
 import com.google.cloud.solutions.cloudadventure.model.Player;
 import com.google.cloud.solutions.cloudadventure.model.world.Maze;
-import com.google.cloud.solutions.cloudadventure.model.world.Tile;
+import com.google.cloud.solutions.cloudadventure.model.world.Maze.Cardinal;
+import com.google.cloud.solutions.cloudadventure.util.PlayerActions;
 import com.google.cloud.solutions.cloudadventure.util.StorageUtils;
 
-import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.logging.Logger;
@@ -46,14 +47,6 @@ public class PlayerEndpoint {
 
   private static final Logger LOG = Logger.getLogger(PlayerEndpoint.class.getName());
 
-  private ArrayList<String> getHandles(List<Player> players) {
-    ArrayList<String> handles = new ArrayList<String>();
-    for (Player player : players) {
-      handles.add(player.getHandle());
-    }
-    return handles;
-  }
-
   /**
    * Creates an instance of {@link Player} using the user's handle and links the new player to the
    * game specified by the game ID.
@@ -81,20 +74,20 @@ public class PlayerEndpoint {
    * 
    * @param gameId the ID of the game that is being joined
    * @param handle the handle of the player
-   * @return the list of {@link Player}s who is being pinged
+   * @return the roster of {@link Player}s who is being pinged; see {@link #getRoster}
    */
   @ApiMethod(path = "players/notifyJoin/{gameId}", name = "players.notifyJoin",
       httpMethod = HttpMethod.POST)
   public List<Player> sendJoinNotification(
       @Named("gameId") final String gameId, @Named("handle") final String handle) {
-    List<Player> players = getPlayersInGame(gameId);
-    ArrayList<String> handles = getHandles(players);
-    try {
-      CloudMessenger.pingGamePlayerJoin(
-          new GameMessage().setFrom(handle).setGameId(gameId).setTo(handles));
-    } catch (IOException e) {
-      LOG.warning(e.getMessage());
+    List<Player> players = getRoster(gameId);
+    ArrayList<String> handles = new ArrayList<String>();
+    for (Player player : players) {
+      handles.add(player.getHandle());
     }
+    // A player joins a game once, so the handle identifies the event.
+    CloudMessenger.pingGamePlayerJoin(new GameMessage().setFrom(handle).setGameId(gameId)
+        .setTo(handles).setEventId(handle));
     return players;
   }
 
@@ -108,18 +101,10 @@ public class PlayerEndpoint {
       httpMethod = HttpMethod.POST)
   public void leaveGame(
       @Named("gameId") final String gameId, @Named("handle") final String handle) {
-    removePlayer(handle);
-    List<String> handles = getHandles(getPlayersInGame(gameId));
-    handles.remove(handle); // just in case
-    if (handles.isEmpty()) {
-      StorageUtils.destroyGame(gameId);
-    } else {
-      try {
-        CloudMessenger.pingGamePlayerLeave(
-            new GameMessage().setFrom(handle).setTo(handles).setGameId(gameId));
-      } catch (IOException e) {
-        LOG.warning(e.getMessage());
-      }
+    List<String> handles = removeFromGame(handle, gameId);
+    if (!handles.isEmpty()) {
+      CloudMessenger.pingGamePlayerLeave(new GameMessage().setFrom(handle).setTo(handles)
+          .setGameId(gameId).setEventId(handle));
     }
   }
 
@@ -132,7 +117,7 @@ public class PlayerEndpoint {
    * @param gemsCollected the number of gems collected in the game
    * @param mobsKilled the number of mobiles killed in the game
    * @param deaths the number of deaths the player accumulated in the game
-   * @return the list of {@link Player}s that were in this game
+   * @return the roster of {@link Player}s that were in this game; see {@link #getRoster}
    */
   @ApiMethod(path = "players.saveAndSendScores", name = "players.saveAndSendScores",
       httpMethod = HttpMethod.POST)
@@ -141,19 +126,14 @@ public class PlayerEndpoint {
       @Named("mobsKilled") long mobsKilled, @Named("deaths") long deaths) {
     GameUserEndpoint.updateUserWithPostGameScores(handle, gemsCollected, mobsKilled);
 
-    List<Player> players = getPlayersInGame(gameId);
+    List<Player> players = getRoster(gameId);
     ArrayList<String> handles = new ArrayList<String>();
     for (Player player : players) {
-      player.setMaze(null); // unnecessary to send this blob
       handles.add(player.getHandle());
     }
-    try {
-      CloudMessenger.pingGamePlayerSendEndScore(
-          new GameMessage().setGameId(gameId).setFrom(handle).setTo(handles),
-          gemsCollected, mobsKilled, deaths);
-    } catch (IOException e) {
-      LOG.warning(e.getMessage());
-    }
+    CloudMessenger.pingGamePlayerSendEndScore(
+        new GameMessage().setGameId(gameId).setFrom(handle).setTo(handles).setEventId(handle),
+        gemsCollected, mobsKilled, deaths);
     return players;
   }
 
@@ -174,7 +154,7 @@ public class PlayerEndpoint {
         player = null;
       }
     }
-    return player;
+    return StorageUtils.loadMaze(player);
   }
 
   /**
@@ -186,42 +166,61 @@ public class PlayerEndpoint {
    */
   @ApiMethod(path = "players/{handle}", name = "players.get")
   public Player getPlayer(@Named("handle") String handle) {
-    return StorageUtils.getPlayer(handle);
+    return StorageUtils.loadMaze(StorageUtils.getPlayer(handle));
   }
 
   /**
-   * Gets a list of players in a certain game.
+   * Gets a list of players in a certain game. The players' personal mazes are not loaded.
    * 
    * @param gameId the ID of the game
    * @return a list of {@link Player}s in the game
    */
-  @SuppressWarnings("unchecked")
   @ApiMethod(path = "players/game/{gameId}", name = "players.getFromGame")
   public static List<Player> getPlayersInGame(@Named("gameId") String gameId) {
-    Filter userHandleFilter = new Query.FilterPredicate("game_id", FilterOperator.EQUAL, gameId);
-    Query q = new Query("Player").setFilter(userHandleFilter);
-    List<Entity> entities =
-        StorageUtils.getDatastore().prepare(q).asList(FetchOptions.Builder.withDefaults());
+    return new ArrayList<Player>(StorageUtils.getPlayers(getHandlesInGame(gameId)).values());
+  }
+
+  /**
+   * Gets the roster of a certain game: the players in it with only their handles and scalar
+   * statistics filled in. None of the blob properties are deserialized.
+   * 
+   * @param gameId the ID of the game
+   * @return a list of {@link Player}s in the game, without maze, tile or pickups
+   */
+  @ApiMethod(path = "players/roster/{gameId}", name = "players.getRoster")
+  public static List<Player> getRoster(@Named("gameId") String gameId) {
+    return new ArrayList<Player>(
+        StorageUtils.getPlayerStats(gameId, getHandlesInGame(gameId)).values());
+  }
 
-    ArrayList<Player> handles = new ArrayList<Player>();
-    for (Entity entity : entities) {
-      Player player = new Player();
-      player.setHandle((String) entity.getProperty("handle"));
-      player.setGameId((String) entity.getProperty("game_id"));
-      player.setMaze(StorageUtils.getUnindexedBlobValue(entity, "maze", Maze.class));
-      player.setCurrentTile(StorageUtils.getUnindexedBlobValue(entity, "current_tile", Tile.class));
-      player.setOrientation(Maze.Cardinal.valueOf((String) entity.getProperty("orientation")));
-      player.setCurrentHP((Long) entity.getProperty("current_hp"));
-      player.setMaxHP((Long) entity.getProperty("max_hp"));
-      player.setGemsCollected((Long) entity.getProperty("gems_collected"));
-      player.setMobsKilled((Long) entity.getProperty("mobs_killed"));
-      player.setNumDeaths((Long) entity.getProperty("num_deaths"));
-      player.setPickups(StorageUtils.getUnindexedBlobValue(entity, "pickups", ArrayList.class));
-      player
-          .setBaseItems(StorageUtils.getUnindexedBlobValue(entity, "base_items", ArrayList.class));
-      handles.add(player);
+  /**
+   * Gets the handles of the players in a certain game from its {@link GameRoster}, without fetching
+   * the Player entities themselves. Use this when only the handles are needed, for example to send
+   * notifications.
+   * 
+   * @param gameId the ID of the game
+   * @return the handles of the players in the game, in join order
+   */
+  protected static List<String> getHandlesInGame(String gameId) {
+    GameRoster roster = StorageUtils.getGameRoster(gameId);
+    if (roster == null) {
+      // Games created before rosters were introduced.
+      return queryHandlesInGame(gameId);
     }
+    return new ArrayList<String>(roster.getHandles());
+  }
 
+  /**
+   * Gets the handles of the players in a certain game with an eventually consistent keys-only
+   * query. Only used for games which do not have a {@link GameRoster}.
+   */
+  private static List<String> queryHandlesInGame(String gameId) {
+    Filter gameIdFilter = new Query.FilterPredicate("game_id", FilterOperator.EQUAL, gameId);
+    Query q = new Query("Player").setFilter(gameIdFilter).setKeysOnly();
+    ArrayList<String> handles = new ArrayList<String>();
+    for (Entity entity : StorageUtils.getDatastore().prepare(q).asIterable()) {
+      handles.add(entity.getKey().getName());
+    }
     return handles;
   }
 
@@ -232,17 +231,151 @@ public class PlayerEndpoint {
    */
   @ApiMethod(path = "players", name = "players.insert")
   public void insertPlayer(Player player) {
-    StorageUtils.writePlayer(player);
+    List<String> existingHandles = new ArrayList<String>();
+    if (StorageUtils.getGameRoster(player.getGameId()) == null) {
+      existingHandles = queryHandlesInGame(player.getGameId());
+    }
+    StorageUtils.addPlayerToGame(player, existingHandles);
   }
 
   /**
-   * Update the player of the same handle.
+   * Update the player of the same handle with the state the client owns, which is only the
+   * direction it faces. Everything else about a player (hit points, inventory, current Tile,
+   * statistics and its maze) is changed by the server alone, through the action methods such as
+   * {@link #move} and {@link #fight}, and is kept as stored.
    * 
    * @param player the {@link Player} to be updated
    */
   @ApiMethod(path = "players", name = "players.update")
-  public void updatePlayer(Player player) {
-    StorageUtils.writePlayer(player);
+  public void updatePlayer(final Player player) {
+    StorageUtils.Mutation<Player> turn = new StorageUtils.Mutation<Player>() {
+      @Override
+      public Player apply(Player current) {
+        Cardinal orientation = player.getOrientation();
+        if (orientation == null || orientation == current.getOrientation()) {
+          return null;
+        }
+        current.setOrientation(orientation);
+        return current;
+      }
+    };
+    if (StorageUtils.updatePlayer(player.getHandle(), turn) == null) {
+      LOG.warning("No Player with handle " + player.getHandle() + " could be found.");
+    }
+  }
+
+  /**
+   * Moves the player one Tile in a direction its current Tile is open to. See
+   * {@link PlayerActions#move}.
+   *
+   * @param handle the handle of the player
+   * @param direction the {@link Cardinal} direction to move in
+   * @return the {@link ActionResult}, or {@code null} if the player or its game cannot be found
+   */
+  @ApiMethod(path = "players/{handle}/move", name = "players.move", httpMethod = HttpMethod.POST)
+  public ActionResult move(
+      @Named("handle") String handle, @Named("direction") final String direction) {
+    return act(handle, new Action() {
+      @Override
+      public ActionResult apply(Player player, Maze maze) {
+        Cardinal cardinal;
+        try {
+          cardinal = Cardinal.valueOf(direction);
+        } catch (IllegalArgumentException e) {
+          return ActionResult.disallowed("There is no direction " + direction + ".");
+        }
+        return PlayerActions.move(player, maze, cardinal);
+      }
+    });
+  }
+
+  /**
+   * Fights a hostile creature on the player's Tile. See {@link PlayerActions#fight}.
+   *
+   * @param handle the handle of the player
+   * @param creature the name of the creature to fight
+   * @return the {@link ActionResult}, or {@code null} if the player or its game cannot be found
+   */
+  @ApiMethod(path = "players/{handle}/fight", name = "players.fight", httpMethod = HttpMethod.POST)
+  public ActionResult fight(
+      @Named("handle") String handle, @Named("creature") final String creature) {
+    return act(handle, new Action() {
+      @Override
+      public ActionResult apply(Player player, Maze maze) {
+        return PlayerActions.fight(player, maze, creature);
+      }
+    });
+  }
+
+  /**
+   * Picks up a pickup on the player's Tile. See {@link PlayerActions#pickUp}.
+   *
+   * @param handle the handle of the player
+   * @param pickup the name of the pickup to pick up
+   * @return the {@link ActionResult}, or {@code null} if the player or its game cannot be found
+   */
+  @ApiMethod(path = "players/{handle}/pickUp", name = "players.pickUp",
+      httpMethod = HttpMethod.POST)
+  public ActionResult pickUp(
+      @Named("handle") String handle, @Named("pickup") final String pickup) {
+    return act(handle, new Action() {
+      @Override
+      public ActionResult apply(Player player, Maze maze) {
+        return PlayerActions.pickUp(player, maze, pickup);
+      }
+    });
+  }
+
+  /**
+   * Uses a healing pickup the player carries. See {@link PlayerActions#use}.
+   *
+   * @param handle the handle of the player
+   * @param pickup the name of the pickup to use
+   * @return the {@link ActionResult}, or {@code null} if the player or its game cannot be found
+   */
+  @ApiMethod(path = "players/{handle}/use", name = "players.use", httpMethod = HttpMethod.POST)
+  public ActionResult use(
+      @Named("handle") String handle, @Named("pickup") final String pickup) {
+    return act(handle, new Action() {
+      @Override
+      public ActionResult apply(Player player, Maze maze) {
+        return PlayerActions.use(player, maze, pickup);
+      }
+    });
+  }
+
+  /**
+   * An action a player takes, applied by {@link PlayerActions}.
+   */
+  private interface Action {
+    ActionResult apply(Player player, Maze maze);
+  }
+
+  /**
+   * Applies an action to a player in a running game and stores the player if the action was
+   * allowed. Neither the player's personal maze nor the whole game maze is loaded: the action only
+   * reads the Tiles it involves, and only the Player entity is written. Actions sent concurrently,
+   * for example from two devices, are applied one after the other.
+   */
+  private static ActionResult act(String handle, final Action action) {
+    final ActionResult[] result = new ActionResult[1];
+    StorageUtils.updatePlayer(handle, new StorageUtils.Mutation<Player>() {
+      @Override
+      public Player apply(Player player) {
+        Game game = StorageUtils.getGame(player.getGameId());
+        if (game == null || game.getMaze() == null) {
+          result[0] = null;
+          return null;
+        }
+        if (!game.isRunning()) {
+          result[0] = ActionResult.disallowed("The game is not running.");
+          return null;
+        }
+        result[0] = action.apply(player, game.getMaze());
+        return result[0].isAllowed() ? player : null;
+      }
+    });
+    return result[0];
   }
 
   /**
@@ -253,12 +386,30 @@ public class PlayerEndpoint {
    */
   @ApiMethod(path = "players/{handle}", name = "players.remove")
   public void removePlayer(@Named("handle") String handle) {
-    String gameId = StorageUtils.getPlayer(handle).getGameId();
-    StorageUtils.destroyPlayer(handle);
-    List<String> handles = getHandles(getPlayersInGame(gameId));
-    handles.remove(handle); // just in case
+    Player player = StorageUtils.getPlayer(handle);
+    if (player != null) {
+      removeFromGame(handle, player.getGameId());
+    }
+  }
+
+  /**
+   * Takes the player off the roster of its game and removes it, destroying the game if no players
+   * remain in it.
+   * 
+   * @param handle the handle of the player to be removed
+   * @param gameId the ID of the game that this player was in
+   * @return the handles of the players remaining in the game
+   */
+  private static List<String> removeFromGame(String handle, String gameId) {
+    List<String> handles = StorageUtils.removePlayerFromGame(handle, gameId);
+    if (handles == null) {
+      // Games created before rosters were introduced.
+      handles = queryHandlesInGame(gameId);
+      handles.remove(handle); // just in case
+    }
     if (handles.isEmpty()) {
       StorageUtils.destroyGame(gameId);
     }
+    return handles;
   }
 }
@@ -0,0 +1,188 @@
+/*
+ * Copyright 2013 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package com.google.cloud.solutions.cloudadventure.model;
+
+import com.google.cloud.solutions.cloudadventure.model.world.Maze.Cardinal;
+import com.google.cloud.solutions.cloudadventure.model.world.Pickup;
+import com.google.cloud.solutions.cloudadventure.model.world.Tile;
+
+import java.util.List;
+
+/**
+ * The outcome of an action a {@link Player} takes in a game, such as a move or a fight. It carries
+ * only the player's statistics and whatever else the action changed, so that the client does not
+ * need to fetch the whole player after every action.
+ */
+public class ActionResult {
+
+  /**
+   * {@code false} if the action was not allowed by the rules, in which case nothing changed.
+   */
+  private boolean allowed;
+
+  /**
+   * What happened, or why the action was not allowed.
+   */
+  private String message;
+
+  /**
+   * The Tile the player is on, if the action changed it or anything on it; {@code null} otherwise.
+   */
+  private Tile currentTile;
+
+  private Cardinal orientation;
+  private long currentHP;
+  private long gemsCollected;
+  private long mobsKilled;
+  private long numDeaths;
+
+  /**
+   * The damage the player dealt and took in a fight.
+   */
+  private long damageDealt;
+  private long damageTaken;
+
+  /**
+   * What the player is carrying, if the action changed it; {@code null} otherwise.
+   */
+  private List<Pickup> pickups;
+
+  /**
+   * Creates the result of an action which the rules did not allow.
+   *
+   * @param message why the action was not allowed
+   */
+  public static ActionResult disallowed(String message) {
+    return new ActionResult().setAllowed(false).setMessage(message);
+  }
+
+  /**
+   * Creates the result of an allowed action, with the player's current statistics filled in.
+   *
+   * @param player the player after the action
+   * @param message what happened
+   */
+  public static ActionResult allowed(Player player, String message) {
+    return new ActionResult()
+        .setAllowed(true)
+        .setMessage(message)
+        .setOrientation(player.getOrientation())
+        .setCurrentHP(player.getCurrentHP())
+        .setGemsCollected(player.getGemsCollected())
+        .setMobsKilled(player.getMobsKilled())
+        .setNumDeaths(player.getNumDeaths());
+  }
+
+  public boolean isAllowed() {
+    return allowed;
+  }
+
+  public ActionResult setAllowed(boolean allowed) {
+    this.allowed = allowed;
+    return this;
+  }
+
+  public String getMessage() {
+    return message;
+  }
+
+  public ActionResult setMessage(String message) {
+    this.message = message;
+    return this;
+  }
+
+  public Tile getCurrentTile() {
+    return currentTile;
+  }
+
+  public ActionResult setCurrentTile(Tile currentTile) {
+    this.currentTile = currentTile;
+    return this;
+  }
+
+  public Cardinal getOrientation() {
+    return orientation;
+  }
+
+  public ActionResult setOrientation(Cardinal orientation) {
+    this.orientation = orientation;
+    return this;
+  }
+
+  public long getCurrentHP() {
+    return currentHP;
+  }
+
+  public ActionResult setCurrentHP(long currentHP) {
+    this.currentHP = currentHP;
+    return this;
+  }
+
+  public long getGemsCollected() {
+    return gemsCollected;
+  }
+
+  public ActionResult setGemsCollected(long gemsCollected) {
+    this.gemsCollected = gemsCollected;
+    return this;
+  }
+
+  public long getMobsKilled() {
+    return mobsKilled;
+  }
+
+  public ActionResult setMobsKilled(long mobsKilled) {
+    this.mobsKilled = mobsKilled;
+    return this;
+  }
+
+  public long getNumDeaths() {
+    return numDeaths;
+  }
+
+  public ActionResult setNumDeaths(long numDeaths) {
+    this.numDeaths = numDeaths;
+    return this;
+  }
+
+  public long getDamageDealt() {
+    return damageDealt;
+  }
+
+  public ActionResult setDamageDealt(long damageDealt) {
+    this.damageDealt = damageDealt;
+    return this;
+  }
+
+  public long getDamageTaken() {
+    return damageTaken;
+  }
+
+  public ActionResult setDamageTaken(long damageTaken) {
+    this.damageTaken = damageTaken;
+    return this;
+  }
+
+  public List<Pickup> getPickups() {
+    return pickups;
+  }
+
+  public ActionResult setPickups(List<Pickup> pickups) {
+    this.pickups = pickups;
+    return this;
+  }
+}
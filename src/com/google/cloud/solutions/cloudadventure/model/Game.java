@@ -16,6 +16,8 @@
 
 package com.google.cloud.solutions.cloudadventure.model;
 
+import com.google.api.server.spi.config.AnnotationBoolean;
+import com.google.api.server.spi.config.ApiResourceProperty;
 import com.google.cloud.solutions.cloudadventure.model.world.Maze;
 
 import java.io.Serializable;
@@ -43,6 +45,12 @@ public class Game implements Serializable {
    */
   private boolean isRunning;
 
+  /**
+   * The number of updates made to this Game in storage, so that an older copy is never written
+   * over a newer one. It is not sent to clients.
+   */
+  private long version;
+
   public static Game create(final String id) {
     Game game = new Game();
     game.setId(id);
@@ -73,6 +81,16 @@ public class Game implements Serializable {
     this.isRunning = isRunning;
   }
 
+  @ApiResourceProperty(ignored = AnnotationBoolean.TRUE)
+  public long getVersion() {
+    return version;
+  }
+
+  @ApiResourceProperty(ignored = AnnotationBoolean.TRUE)
+  public void setVersion(long version) {
+    this.version = version;
+  }
+
   /**
    * Starts this game.
    */
@@ -26,6 +26,7 @@ public class GameMessage {
   private String from;
   private List<String> to;
   private String gameId;
+  private String eventId;
 
   public String getFrom() {
     return from;
@@ -53,4 +54,18 @@ public class GameMessage {
     this.gameId = gameId;
     return this;
   }
+
+  /**
+   * @return the ID which identifies the event this message is about, so that the notifications for
+   *         it are sent once even if it is submitted again, for example by a retried request; or
+   *         {@code null} if the game has at most one event of its kind
+   */
+  public String getEventId() {
+    return eventId;
+  }
+
+  public GameMessage setEventId(String eventId) {
+    this.eventId = eventId;
+    return this;
+  }
 }
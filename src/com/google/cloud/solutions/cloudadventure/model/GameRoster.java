@@ -0,0 +1,63 @@
+/*
+ * Copyright 2013 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package com.google.cloud.solutions.cloudadventure.model;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+
+/**
+ * This class represents the roster of a {@link Game}: the handles of the {@link Player}s in it, in
+ * the order in which they joined. It is stored as a child of the game and updated in the same
+ * transaction as the players joining or leaving, so it can be read by key instead of queried.
+ */
+public class GameRoster implements Serializable {
+
+  private static final long serialVersionUID = 1L;
+
+  /**
+   * The ID of the game this roster belongs to.
+   */
+  private String gameId;
+
+  /**
+   * The handles of the players in the game, in join order.
+   */
+  private ArrayList<String> handles;
+
+  public static GameRoster create(final String gameId) {
+    GameRoster roster = new GameRoster();
+    roster.setGameId(gameId);
+    roster.setHandles(new ArrayList<String>());
+    return roster;
+  }
+
+  public String getGameId() {
+    return gameId;
+  }
+
+  public void setGameId(String gameId) {
+    this.gameId = gameId;
+  }
+
+  public ArrayList<String> getHandles() {
+    return handles;
+  }
+
+  public void setHandles(ArrayList<String> handles) {
+    this.handles = handles;
+  }
+}
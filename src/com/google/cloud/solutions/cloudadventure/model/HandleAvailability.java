@@ -0,0 +1,54 @@
+/*
+ * Copyright 2013 Google Inc. All Rights Reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package com.google.cloud.solutions.cloudadventure.model;
+
+import java.util.List;
+
+/**
+ * This class represents which of several candidate user handles are available, with suggestions
+ * of other handles which are.
+ */
+public class HandleAvailability {
+
+  private List<String> available;
+  private List<String> taken;
+  private List<String> suggestions;
+
+  public List<String> getAvailable() {
+    return available;
+  }
+
+  public void setAvailable(List<String> available) {
+    this.available = available;
+  }
+
+  public List<String> getTaken() {
+    return taken;
+  }
+
+  public void setTaken(List<String> taken) {
+    this.taken = taken;
+  }
+
+  public List<String> getSuggestions() {
+    return suggestions;
+  }
+
+  public void setSuggestions(List<String> suggestions) {
+    this.suggestions = suggestions;
+  }
+}
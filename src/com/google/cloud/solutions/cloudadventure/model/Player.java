@@ -16,8 +16,11 @@
 
 package com.google.cloud.solutions.cloudadventure.model;
 
+import com.google.api.server.spi.config.AnnotationBoolean;
+import com.google.api.server.spi.config.ApiResourceProperty;
 import com.google.cloud.solutions.cloudadventure.model.world.Maze;
 import com.google.cloud.solutions.cloudadventure.model.world.Maze.Cardinal;
+import com.google.cloud.solutions.cloudadventure.model.world.MazeDelta;
 import com.google.cloud.solutions.cloudadventure.model.world.Pickup;
 import com.google.cloud.solutions.cloudadventure.model.world.PickupTypes;
 import com.google.cloud.solutions.cloudadventure.model.world.Tile;
@@ -51,8 +54,23 @@ public class Player implements Serializable {
 
   /**
    * The personal {@link Maze} for this Player.
+   * <p>
+   * This is not stored. It is rebuilt from the game maze and {@code mazeDelta} only when a client
+   * asks for it; see {@link StorageUtils#loadMaze(Player)}.
+   */
+  private transient Maze maze;
+
+  /**
+   * The changes this Player has made to the game maze. This is what gets stored in place of the
+   * personal {@link Maze}.
    */
-  private Maze maze;
+  private MazeDelta mazeDelta;
+
+  /**
+   * The number of updates made to this Player in storage, so that an older copy is never written
+   * over a newer one. It is not sent to clients.
+   */
+  private long version;
 
   /**
    * The {@link Tile} of the map which this player is occupying.
@@ -113,15 +131,16 @@ public class Player implements Serializable {
     player.setHandle(handle);
     player.setGameId(gameId);
     player.setMaze(maze);
+    player.setMazeDelta(new MazeDelta());
     player.setCurrentHP(maze.getType().getMaxHP());
     player.setMaxHP(maze.getType().getMaxHP());
 
     Coordinates startCoordinates = maze.getStartingCoordinates();
-    Tile startTile = maze.getGrid()[startCoordinates.x][startCoordinates.y];
+    Tile startTile = maze.getTile(startCoordinates.x, startCoordinates.y);
     List<Pickup> pickups = new ArrayList<Pickup>();
-    pickups.add(new PickupTypes.Broadsword());
-    pickups.add(new PickupTypes.LesserPot());
-    pickups.add(new PickupTypes.GreaterPot());
+    pickups.add(PickupTypes.create(PickupTypes.BROADSWORD));
+    pickups.add(PickupTypes.create(PickupTypes.LESSER_POT));
+    pickups.add(PickupTypes.create(PickupTypes.GREATER_POT));
 
     player.setCurrentTile(startTile);
     Iterator<Cardinal> iter = startTile.getOpenTo().iterator();
@@ -159,6 +178,26 @@ public class Player implements Serializable {
     this.maze = maze;
   }
 
+  @ApiResourceProperty(ignored = AnnotationBoolean.TRUE)
+  public MazeDelta getMazeDelta() {
+    return mazeDelta;
+  }
+
+  @ApiResourceProperty(ignored = AnnotationBoolean.TRUE)
+  public void setMazeDelta(MazeDelta mazeDelta) {
+    this.mazeDelta = mazeDelta;
+  }
+
+  @ApiResourceProperty(ignored = AnnotationBoolean.TRUE)
+  public long getVersion() {
+    return version;
+  }
+
+  @ApiResourceProperty(ignored = AnnotationBoolean.TRUE)
+  public void setVersion(long version) {
+    this.version = version;
+  }
+
   public Tile getCurrentTile() {
     return currentTile;
   }
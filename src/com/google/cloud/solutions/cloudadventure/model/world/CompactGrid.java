@@ -0,0 +1,294 @@
+/*
+ * Copyright 2013 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package com.google.cloud.solutions.cloudadventure.model.world;
+
+import com.google.cloud.solutions.cloudadventure.util.IntObjectMap;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The cells of a {@link Maze}, stored as parallel arrays rather than one {@link Tile} object per
+ * cell. Cell (x, y) is at index {@code x * height + y}.
+ * <p>
+ * Each cell has a byte of open directions, in the bit layout of
+ * {@link com.google.cloud.solutions.cloudadventure.util.LabyrinthGenerator}, and a short index into
+ * a table of interned descriptions. Creatures and pickups are kept in sparse maps keyed by cell
+ * index, holding only the cells which have any.
+ * <p>
+ * A creature or pickup of one of the types registered in {@link CreatureTypes} and
+ * {@link PickupTypes} is stored as a single int, packing its type id with its own state: the hit
+ * points of a creature, or the number of uses left of a pickup. Everything else about it is in the
+ * canonical instance of its type, which is shared. Only instances which differ from their type in
+ * some other way, or are of no registered type, are kept as objects.
+ * <p>
+ * The cells holding each type of creature and pickup are indexed in a {@link SpatialIndex}, which
+ * is kept up to date as they are set.
+ */
+final class CompactGrid {
+
+  /**
+   * Set in the open directions of a cell which has no Tile at all.
+   */
+  static final int NO_TILE = 0x80;
+
+  /**
+   * Set in the open directions of a Tile whose open directions are unknown ({@code null}).
+   */
+  static final int NO_DIRECTIONS = 0x40;
+
+  private static final short NO_DESCRIPTION = -1;
+
+  /**
+   * The packed state of a creature or pickup is a signed number in the low bits of its int, under
+   * its type id.
+   */
+  private static final int STATE_BITS = 24;
+  private static final int MIN_STATE = -(1 << (STATE_BITS - 1));
+  private static final int MAX_STATE = (1 << (STATE_BITS - 1)) - 1;
+  private static final int MAX_TYPE_ID = (1 << (32 - STATE_BITS)) - 1;
+
+  final int width;
+  final int height;
+
+  final SpatialIndex creatureIndex;
+  final SpatialIndex pickupIndex;
+
+  private final byte[] open;
+  private final short[] descriptions;
+  private final ArrayList<String> phrases = new ArrayList<String>();
+  private final Map<String, Short> phraseIds = new HashMap<String, Short>();
+  private final IntObjectMap<int[]> creatures = new IntObjectMap<int[]>();
+  private final IntObjectMap<int[]> pickups = new IntObjectMap<int[]>();
+  private final IntObjectMap<Set<Creature>> otherCreatures = new IntObjectMap<Set<Creature>>();
+  private final IntObjectMap<Set<Pickup>> otherPickups = new IntObjectMap<Set<Pickup>>();
+
+  /**
+   * Creates a grid in which no cell has a Tile yet.
+   */
+  CompactGrid(int width, int height) {
+    if (width < 0 || height < 0 || (long) width * height > Integer.MAX_VALUE) {
+      throw new IllegalArgumentException("Invalid grid size " + width + "x" + height);
+    }
+    this.width = width;
+    this.height = height;
+    this.open = new byte[width * height];
+    this.descriptions = new short[width * height];
+    Arrays.fill(open, (byte) NO_TILE);
+    Arrays.fill(descriptions, NO_DESCRIPTION);
+    this.creatureIndex = new SpatialIndex(CreatureTypes.size(), height);
+    this.pickupIndex = new SpatialIndex(PickupTypes.size(), height);
+  }
+
+  boolean contains(int x, int y) {
+    return x >= 0 && x < width && y >= 0 && y < height;
+  }
+
+  int getOpenMask(int x, int y) {
+    return open[index(x, y)] & 0xFF;
+  }
+
+  void setOpenMask(int x, int y, int mask) {
+    open[index(x, y)] = (byte) mask;
+  }
+
+  String getDescription(int x, int y) {
+    short id = descriptions[index(x, y)];
+    return id == NO_DESCRIPTION ? null : phrases.get(id);
+  }
+
+  void setDescription(int x, int y, String description) {
+    descriptions[index(x, y)] = description == null ? NO_DESCRIPTION : intern(description);
+  }
+
+  /**
+   * Builds the set of creatures on the cell. Unmodified creatures are the canonical instances of
+   * their types, so the set must not be modified, nor the creatures in it.
+   */
+  Set<Creature> getCreatures(int x, int y) {
+    int index = index(x, y);
+    int[] packed = creatures.get(index);
+    Set<Creature> others = otherCreatures.get(index);
+    if (packed == null) {
+      return others == null ? Collections.<Creature>emptySet() : others;
+    }
+    Set<Creature> set = new HashSet<Creature>();
+    for (int value : packed) {
+      Creature canonical = CreatureTypes.get(typeId(value));
+      // A type can only be in the set once as its shared instance; more of it are copies.
+      if (state(value) != canonical.getHitPoints() || !set.add(canonical)) {
+        Creature creature = CreatureTypes.create(canonical);
+        creature.setHitPoints(state(value));
+        set.add(creature);
+      }
+    }
+    if (others != null) {
+      set.addAll(others);
+    }
+    return set;
+  }
+
+  void setCreatures(int x, int y, Set<Creature> set) {
+    int index = index(x, y);
+    int[] packed = null;
+    Set<Creature> others = null;
+    creatureIndex.clear(index);
+    if (set != null && !set.isEmpty()) {
+      packed = new int[set.size()];
+      int count = 0;
+      for (Creature creature : set) {
+        creatureIndex.set(CreatureTypes.getId(creature.getName()), index, true);
+        int id = CreatureTypes.getExactId(creature);
+        if (canPack(id, creature.getHitPoints())) {
+          packed[count++] = pack(id, creature.getHitPoints());
+        } else {
+          if (others == null) {
+            others = new HashSet<Creature>();
+          }
+          others.add(creature);
+        }
+      }
+      packed = trim(packed, count);
+    }
+    creatures.put(index, packed);
+    otherCreatures.put(index, others);
+  }
+
+  /**
+   * Builds the set of pickups on the cell. Unmodified pickups are the canonical instances of their
+   * types, so the set must not be modified, nor the pickups in it.
+   */
+  Set<Pickup> getPickups(int x, int y) {
+    int index = index(x, y);
+    int[] packed = pickups.get(index);
+    Set<Pickup> others = otherPickups.get(index);
+    if (packed == null) {
+      return others == null ? Collections.<Pickup>emptySet() : others;
+    }
+    Set<Pickup> set = new HashSet<Pickup>();
+    for (int value : packed) {
+      Pickup canonical = PickupTypes.get(typeId(value));
+      if (state(value) != canonical.getNumUses() || !set.add(canonical)) {
+        Pickup pickup = PickupTypes.create(canonical);
+        pickup.setNumUses(state(value));
+        set.add(pickup);
+      }
+    }
+    if (others != null) {
+      set.addAll(others);
+    }
+    return set;
+  }
+
+  void setPickups(int x, int y, Set<Pickup> set) {
+    int index = index(x, y);
+    int[] packed = null;
+    Set<Pickup> others = null;
+    pickupIndex.clear(index);
+    if (set != null && !set.isEmpty()) {
+      packed = new int[set.size()];
+      int count = 0;
+      for (Pickup pickup : set) {
+        pickupIndex.set(PickupTypes.getId(pickup.getName()), index, true);
+        int id = PickupTypes.getExactId(pickup);
+        if (canPack(id, pickup.getNumUses())) {
+          packed[count++] = pack(id, pickup.getNumUses());
+        } else {
+          if (others == null) {
+            others = new HashSet<Pickup>();
+          }
+          others.add(pickup);
+        }
+      }
+      packed = trim(packed, count);
+    }
+    pickups.put(index, packed);
+    otherPickups.put(index, others);
+  }
+
+  /**
+   * Compares the creatures and pickups of a cell with those of the same cell of another grid,
+   * without building any sets.
+   *
+   * @return {@code true} if they are the same; {@code false} if they differ, or if either cell
+   *         holds instances which are not packed and so cannot be compared this way
+   */
+  boolean sameEncounterables(int x, int y, CompactGrid other) {
+    int index = index(x, y);
+    int otherIndex = other.index(x, y);
+    return otherCreatures.get(index) == null && other.otherCreatures.get(otherIndex) == null
+        && otherPickups.get(index) == null && other.otherPickups.get(otherIndex) == null
+        && Arrays.equals(creatures.get(index), other.creatures.get(otherIndex))
+        && Arrays.equals(pickups.get(index), other.pickups.get(otherIndex));
+  }
+
+  private static boolean canPack(int typeId, long state) {
+    return typeId > 0 && typeId <= MAX_TYPE_ID
+        && state >= MIN_STATE && state <= MAX_STATE;
+  }
+
+  private static int pack(int typeId, long state) {
+    return (typeId << STATE_BITS) | ((int) state & ((1 << STATE_BITS) - 1));
+  }
+
+  private static int typeId(int packed) {
+    return packed >>> STATE_BITS;
+  }
+
+  private static int state(int packed) {
+    return (packed << (32 - STATE_BITS)) >> (32 - STATE_BITS);
+  }
+
+  /**
+   * @return the first count values, sorted so that equal contents give equal arrays, or
+   *         {@code null} if there are none
+   */
+  private static int[] trim(int[] packed, int count) {
+    if (count == 0) {
+      return null;
+    }
+    int[] trimmed = count == packed.length ? packed : Arrays.copyOf(packed, count);
+    Arrays.sort(trimmed);
+    return trimmed;
+  }
+
+  private short intern(String description) {
+    Short id = phraseIds.get(description);
+    if (id == null) {
+      if (phrases.size() > Short.MAX_VALUE) {
+        throw new IllegalStateException("Too many distinct tile descriptions.");
+      }
+      id = (short) phrases.size();
+      phrases.add(description);
+      phraseIds.put(description, id);
+    }
+    return id;
+  }
+
+  int index(int x, int y) {
+    if (!contains(x, y)) {
+      throw new IndexOutOfBoundsException("No cell (" + x + ", " + y + ") in a " + width + "x"
+          + height + " grid");
+    }
+    return x * height + y;
+  }
+}
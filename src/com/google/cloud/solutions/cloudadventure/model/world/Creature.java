@@ -30,8 +30,23 @@ public class Creature implements Serializable {
   private long hitPoints;
   private long maxEffect;
 
+  /**
+   * Set on the canonical, shared instances of {@link CreatureTypes}, which must not change.
+   */
+  private transient boolean shared;
+
   public Creature() {}
 
+  /**
+   * Creates a copy of another Creature, which can be modified independently of it.
+   */
+  Creature(Creature other) {
+    this.name = other.name;
+    this.description = other.description;
+    this.hitPoints = other.hitPoints;
+    this.maxEffect = other.maxEffect;
+  }
+
   public Creature(String name, String adjective, int hitPoints, int maxEffect) {
     this.name = name;
     this.description = adjective + "-looking " + name;
@@ -48,6 +63,7 @@ public class Creature implements Serializable {
   }
 
   public void setDescription(String description) {
+    checkModifiable();
     this.description = description;
   }
 
@@ -56,10 +72,28 @@ public class Creature implements Serializable {
   }
 
   public void setHitPoints(long hitPoints) {
+    checkModifiable();
     this.hitPoints = hitPoints;
   }
 
   public long getMaxEffect() {
     return maxEffect;
   }
+
+  /**
+   * Marks this instance as a canonical, shared one.
+   *
+   * @return this
+   */
+  Creature share() {
+    this.shared = true;
+    return this;
+  }
+
+  private void checkModifiable() {
+    if (shared) {
+      throw new UnsupportedOperationException("The canonical " + name
+          + " is shared and cannot be modified; use CreatureTypes.create for a copy.");
+    }
+  }
 }
@@ -18,11 +18,106 @@ package com.google.cloud.solutions.cloudadventure.model.world;
 
 import com.google.cloud.solutions.cloudadventure.util.WorldGenerator;
 
+import java.util.HashMap;
+import java.util.Map;
+
 /**
- * Types of Creatures and their stats.
+ * Types of Creatures and their stats, with a registry of their canonical instances by type id.
  */
 public class CreatureTypes {
 
+  /*
+   * The canonical instance of each type. They are shared, for example by every Tile of a maze with
+   * the type on it, and cannot be modified; use create() for an instance with its own state.
+   */
+  public static final Creature UNICORN = new Unicorn().share();
+  public static final Creature FAERIE = new Faerie().share();
+  public static final Creature SPRITE = new Sprite().share();
+  public static final Creature SPIDER = new Spider().share();
+  public static final Creature NEWT = new Newt().share();
+  public static final Creature BOAR = new Boar().share();
+  public static final Creature TROLL = new Troll().share();
+  public static final Creature GIANT = new Giant().share();
+  public static final Creature HIPPOGRIFF = new Hippogriff().share();
+  public static final Creature DRAGON = new Dragon().share();
+
+  /**
+   * Type id of creatures which are not one of the registered types.
+   */
+  public static final int UNKNOWN = 0;
+
+  /**
+   * The registered types, indexed by type id - 1.
+   * <p>
+   * NOTE: the order of this array defines the type ids written to storage. Only ever append to it.
+   */
+  private static final Creature[] REGISTRY = {
+      UNICORN, FAERIE, SPRITE, SPIDER, NEWT, BOAR, TROLL, GIANT, HIPPOGRIFF, DRAGON };
+
+  private static final Map<String, Integer> IDS = new HashMap<String, Integer>();
+
+  static {
+    for (int i = 0; i < REGISTRY.length; i++) {
+      IDS.put(REGISTRY[i].getName(), i + 1);
+    }
+  }
+
+  private CreatureTypes() {}
+
+  /**
+   * @return the number of registered types; type ids run from 1 to this number
+   */
+  public static int size() {
+    return REGISTRY.length;
+  }
+
+  /**
+   * @param id a type id
+   * @return the canonical instance of the type
+   * @throws IllegalArgumentException if there is no type with the id
+   */
+  public static Creature get(int id) {
+    if (id < 1 || id > REGISTRY.length) {
+      throw new IllegalArgumentException("Unknown creature type id " + id);
+    }
+    return REGISTRY[id - 1];
+  }
+
+  /**
+   * @param name the name of a creature
+   * @return the id of the type with that name, or {@link #UNKNOWN}
+   */
+  public static int getId(String name) {
+    Integer id = IDS.get(name);
+    return id == null ? UNKNOWN : id;
+  }
+
+  /**
+   * @return the id of the type of which creature is an unmodified instance, apart from its
+   *         hit points, or {@link #UNKNOWN} if it is not one
+   */
+  static int getExactId(Creature creature) {
+    int id = getId(creature.getName());
+    if (id == UNKNOWN) {
+      return UNKNOWN;
+    }
+    Creature canonical = REGISTRY[id - 1];
+    if (canonical.getMaxEffect() != creature.getMaxEffect()
+        || !canonical.getDescription().equals(creature.getDescription())) {
+      return UNKNOWN;
+    }
+    return id;
+  }
+
+  /**
+   * @param type a canonical instance, or any other instance to copy
+   * @return a new instance of the type, which can be modified
+   */
+  public static Creature create(Creature type) {
+    return new Creature(type);
+  }
+
+
   public static class Unicorn extends Creature {
     private static final long serialVersionUID = 1L;
 
@@ -0,0 +1,178 @@
+/*
+ * Copyright 2013 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package com.google.cloud.solutions.cloudadventure.model.world;
+
+import com.google.cloud.solutions.cloudadventure.model.world.Maze.Cardinal;
+
+/**
+ * The number of moves from each cell of a {@link Maze} to the nearest of a set of source cells,
+ * following the open directions of the Tiles, as computed by one breadth-first search. Walking from
+ * a cell to a neighbour one move nearer, as given by {@link #nextStep}, follows a shortest path to
+ * a source.
+ * <p>
+ * Distances are stored in a {@code short} per cell, or an {@code int} per cell for mazes with more
+ * cells than a {@code short} can count. The field describes the maze as it was when computed; the
+ * maze computes a new one after its Tiles change. Fields are not stored with the maze: each maze
+ * computes them when first asked for and keeps them until it changes or is written out.
+ */
+public final class DistanceField {
+
+  /**
+   * The distance of cells from which no source can be reached.
+   */
+  public static final int UNREACHABLE = -1;
+
+  private final CompactGrid cells;
+  private final short[] shortDistances;
+  private final int[] intDistances;
+
+  /**
+   * Computes the distances of all cells to the nearest source.
+   *
+   * @param cells the cells of the maze, which must not change while the field is in use
+   * @param sources the cell indexes of the sources; those without a Tile are ignored
+   */
+  DistanceField(CompactGrid cells, int[] sources) {
+    this.cells = cells;
+    int size = cells.width * cells.height;
+    if (size - 1 <= Short.MAX_VALUE) {
+      shortDistances = new short[size];
+      intDistances = null;
+    } else {
+      shortDistances = null;
+      intDistances = new int[size];
+    }
+    for (int i = 0; i < size; i++) {
+      set(i, UNREACHABLE);
+    }
+
+    int[] queue = new int[size];
+    int head = 0;
+    int tail = 0;
+    for (int source : sources) {
+      if (openMask(source) >= 0 && get(source) == UNREACHABLE) {
+        set(source, 0);
+        queue[tail++] = source;
+      }
+    }
+    Cardinal[] directions = Cardinal.values();
+    while (head < tail) {
+      int index = queue[head++];
+      int distance = get(index);
+      int open = openMask(index);
+      for (Cardinal direction : directions) {
+        // A neighbour is one move nearer through this cell if it has a Tile and the two are open
+        // towards each other.
+        int neighbour = neighbour(index, direction);
+        if (neighbour < 0 || get(neighbour) != UNREACHABLE || (open & bit(direction)) == 0) {
+          continue;
+        }
+        int neighbourOpen = openMask(neighbour);
+        if (neighbourOpen > 0 && (neighbourOpen & bit(opposite(direction))) != 0) {
+          set(neighbour, distance + 1);
+          queue[tail++] = neighbour;
+        }
+      }
+    }
+  }
+
+  /**
+   * @return the number of moves from (x, y) to the nearest source, or {@link #UNREACHABLE} if no
+   *         source can be reached from it or it is not in the maze
+   */
+  public int getDistance(int x, int y) {
+    return cells.contains(x, y) ? get(cells.index(x, y)) : UNREACHABLE;
+  }
+
+  /**
+   * @return whether a source can be reached from (x, y)
+   */
+  public boolean isReachable(int x, int y) {
+    return getDistance(x, y) != UNREACHABLE;
+  }
+
+  /**
+   * @return the direction of the first move on a shortest path from (x, y) to the nearest source,
+   *         or {@code null} if (x, y) is a source or no source can be reached from it
+   */
+  public Cardinal nextStep(int x, int y) {
+    int distance = getDistance(x, y);
+    if (distance <= 0) {
+      return null;
+    }
+    int index = cells.index(x, y);
+    for (Cardinal direction : Cardinal.values()) {
+      int neighbour = neighbour(index, direction);
+      if ((openMask(index) & bit(direction)) != 0 && neighbour >= 0
+          && get(neighbour) == distance - 1) {
+        return direction;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * @return the cell index of the neighbour of a cell in a direction, or -1 if it is off the grid
+   */
+  private int neighbour(int index, Cardinal direction) {
+    int x = index / cells.height;
+    int y = index % cells.height;
+    switch (direction) {
+      case NORTH:
+        return y + 1 < cells.height ? index + 1 : -1;
+      case EAST:
+        return x + 1 < cells.width ? index + cells.height : -1;
+      case SOUTH:
+        return y > 0 ? index - 1 : -1;
+      case WEST:
+        return x > 0 ? index - cells.height : -1;
+      default:
+        return -1;
+    }
+  }
+
+  /**
+   * @return the open directions of a cell, none if they are unknown, or -1 if it has no Tile
+   */
+  private int openMask(int index) {
+    int mask = cells.getOpenMask(index / cells.height, index % cells.height);
+    if ((mask & CompactGrid.NO_TILE) != 0) {
+      return -1;
+    }
+    return (mask & CompactGrid.NO_DIRECTIONS) != 0 ? 0 : mask;
+  }
+
+  private static int bit(Cardinal direction) {
+    return 1 << direction.ordinal();
+  }
+
+  private static Cardinal opposite(Cardinal direction) {
+    return Cardinal.values()[(direction.ordinal() + 2) % 4];
+  }
+
+  private int get(int index) {
+    return shortDistances != null ? shortDistances[index] : intDistances[index];
+  }
+
+  private void set(int index, int distance) {
+    if (shortDistances != null) {
+      shortDistances[index] = (short) distance;
+    } else {
+      intDistances[index] = distance;
+    }
+  }
+}
@@ -16,18 +16,20 @@
 
 package com.google.cloud.solutions.cloudadventure.model.world;
 
-import static com.google.cloud.solutions.cloudadventure.model.world.Maze.Cardinal.EAST;
-import static com.google.cloud.solutions.cloudadventure.model.world.Maze.Cardinal.NORTH;
-import static com.google.cloud.solutions.cloudadventure.model.world.Maze.Cardinal.SOUTH;
-import static com.google.cloud.solutions.cloudadventure.model.world.Maze.Cardinal.WEST;
-
+import com.google.api.server.spi.config.AnnotationBoolean;
+import com.google.api.server.spi.config.ApiResourceProperty;
 import com.google.cloud.solutions.cloudadventure.model.world.Tile.Coordinates;
+import com.google.cloud.solutions.cloudadventure.util.LabyrinthGenerator;
+import com.google.cloud.solutions.cloudadventure.util.WorldCodec;
 import com.google.cloud.solutions.cloudadventure.util.WorldGenerator;
 
+import java.io.IOException;
+import java.io.ObjectStreamException;
 import java.io.Serializable;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Set;
 
@@ -39,27 +41,37 @@ public class Maze implements Serializable {
 
   private static final long serialVersionUID = 1L;
 
+  private static final int GEM_TYPE_ID = PickupTypes.getId(PickupTypes.GEM.getName());
+
   /**
    * The type of this maze.
    */
   private MazeType type;
 
   /**
-   * The grid of {@link Tile}s that compose the body of the maze.
+   * The cells that compose the body of the maze, stored compactly; see {@link #getGrid()} for the
+   * {@link Tile} view of them.
    * <p>
-   * grid[0][0] represents the bottom left-hand corner.
+   * Cell (0, 0) represents the bottom left-hand corner.
    */
-  private Tile[][] grid;
+  private CompactGrid cells;
 
   /**
-   * The {@link Coordinates} of any remaining gems on the maze.
+   * The {@link Coordinates} of for this maze.
    */
-  private ArrayList<Coordinates> gemsRemaining;
+  private Coordinates startingCoordinates;
 
   /**
-   * The {@link Coordinates} of for this maze.
+   * The seed this maze was generated from, or {@code null} if it cannot be generated again.
    */
-  private Coordinates startingCoordinates;
+  private Long seed;
+
+  /**
+   * The distances of the Tiles to the start, and to the nearest gem, computed when first needed
+   * and dropped whenever the Tiles they depend on change; {@code null} until then.
+   */
+  private transient DistanceField startDistances;
+  private transient DistanceField gemDistances;
 
   /**
    * This class enumerates the types of cardinal directions available.
@@ -78,109 +90,134 @@ public class Maze implements Serializable {
    *
    */
   public enum MazeType {
-    TEST(15), RANDOM(20), LABYRINTH(25);
+    TEST(15, 1, 1), RANDOM(20, 5, 5), LABYRINTH(25, 15, 15);
 
     /**
      * The maximum hit points that a player may have at any given time on this map.
      */
     final int maxHP;
 
-    MazeType(int maxHP) {
+    /**
+     * The number of columns and rows of Tiles on this map.
+     */
+    final int width;
+    final int height;
+
+    MazeType(int maxHP, int width, int height) {
       this.maxHP = maxHP;
+      this.width = width;
+      this.height = height;
     }
 
     public int getMaxHP() {
       return this.maxHP;
     }
+
+    public int getWidth() {
+      return this.width;
+    }
+
+    public int getHeight() {
+      return this.height;
+    }
   }
 
   public Maze() {}
 
   /**
-   * Creates a {@link Maze} instance based on the specified {@link MazeType}.
+   * Creates a {@link Maze} instance based on the specified {@link MazeType}, from a new seed.
    *
    * @param mazeType
    * @return a new Maze
    */
   public Maze(final MazeType mazeType) {
+    this(mazeType, mazeType.getWidth(), mazeType.getHeight(), WorldGenerator.newSeed());
+  }
+
+  /**
+   * Generates a {@link Maze} from a seed. The same arguments always generate the same maze, as long
+   * as {@link WorldGenerator#VERSION} is unchanged.
+   *
+   * @param mazeType
+   * @param width the number of columns of Tiles; ignored for {@link MazeType#TEST}
+   * @param height the number of rows of Tiles; ignored for {@link MazeType#TEST}
+   * @param seed the seed all random choices are drawn from
+   */
+  public Maze(final MazeType mazeType, int width, int height, long seed) {
+    WorldGenerator generator = new WorldGenerator(seed);
+    this.seed = seed;
     switch (mazeType) {
       case TEST:
-        generateTestMaze();
+        generateTestMaze(generator);
         break;
       case RANDOM:
-        generateRandomMaze();
+        generateRandomMaze(generator, width, height);
         break;
       case LABYRINTH:
-        generateLabyrinth();
+        generateLabyrinth(generator, width, height);
         break;
       default:
-        generateTestMaze();
+        generateTestMaze(generator);
     }
+    getDistancesToStart();
   }
 
   /**
    * This map is consists of one tile with one gem on it. This is for developers to test with.
    */
-  private void generateTestMaze() {
+  private void generateTestMaze(WorldGenerator generator) {
     this.type = MazeType.TEST;
-    this.gemsRemaining = new ArrayList<Coordinates>();
     this.startingCoordinates = new Coordinates(0, 0);
 
     Set<Creature> creatures = new HashSet<Creature>();
-    creatures.add(new CreatureTypes.Newt());
+    creatures.add(CreatureTypes.NEWT);
     Set<Pickup> potentialPickups = new HashSet<Pickup>();
-    potentialPickups.add(new PickupTypes.Gem());
-
-    grid = new Tile[1][1];
-    Tile[] col = new Tile[1];
-    col[0] = new Tile(0, 0, null, creatures, potentialPickups, NORTH, EAST, SOUTH, WEST);
-    recordGemPresence(col[0]);
-    grid[0] = col;
+    potentialPickups.add(PickupTypes.GEM);
+
+    cells = new CompactGrid(1, 1);
+    cells.setOpenMask(0, 0, LabyrinthGenerator.NORTH | LabyrinthGenerator.EAST
+        | LabyrinthGenerator.SOUTH | LabyrinthGenerator.WEST);
+    cells.setDescription(0, 0, generator.nextLocationDescription());
+    cells.setCreatures(0, 0, creatures);
+    cells.setPickups(0, 0, potentialPickups);
   }
 
   /**
-   * This map is an open grid of Tiles, 5x5. There is a random assortment of items on each Tile. The
-   * result is different each time this method is called.
+   * This map is an open grid of Tiles. There is a random assortment of items on each Tile.
    */
-  private void generateRandomMaze() {
+  private void generateRandomMaze(WorldGenerator generator, int width, int height) {
     this.type = MazeType.RANDOM;
-    this.gemsRemaining = new ArrayList<Coordinates>();
 
-    generateOpenGrid(5, 5);
+    populateGrid(generator, width, height, LabyrinthGenerator.generateOpenGrid(width, height));
   }
 
   /**
+   * This map is a labyrinth of Tiles, in which there is exactly one path between any two Tiles.
+   * There is a random assortment of items on each Tile.
    */
-  private void generateLabyrinth() {
+  private void generateLabyrinth(WorldGenerator generator, int width, int height) {
     this.type = MazeType.LABYRINTH;
-    this.gemsRemaining = new ArrayList<Coordinates>();
-
-    generateOpenGrid(5, 5);
-  }
 
-  private void recordGemPresence(Tile tile) {
-    for (Pickup pickup : tile.getPickups()) {
-      if (new PickupTypes.Gem().getName().equalsIgnoreCase(pickup.getName())) {
-        this.gemsRemaining.add(tile.getCoord());
-      }
-      return;
-    }
+    populateGrid(generator, width, height,
+        LabyrinthGenerator.generateLabyrinth(width, height, generator.getSource()));
   }
 
-  private Set<Creature> getRandomCreatures(Map<Creature, Integer> potentialCreatures) {
+  private Set<Creature> getRandomCreatures(
+      WorldGenerator generator, Map<Creature, Integer> potentialCreatures) {
     Set<Creature> creatures = new HashSet<Creature>();
     for (Creature creature : potentialCreatures.keySet()) {
-      if (potentialCreatures.get(creature) > WorldGenerator.getRandom(100)) {
+      if (potentialCreatures.get(creature) > generator.nextInt(100)) {
         creatures.add(creature);
       }
     }
     return creatures;  // empty set is OK
   }
 
-  private Set<Pickup> getRandomPickups(Map<Pickup, Integer> potentialPickups) {
+  private Set<Pickup> getRandomPickups(
+      WorldGenerator generator, Map<Pickup, Integer> potentialPickups) {
     Set<Pickup> pickups = new HashSet<Pickup>();
     for (Pickup pickup : potentialPickups.keySet()) {
-      if (potentialPickups.get(pickup) > WorldGenerator.getRandom(100)) {
+      if (potentialPickups.get(pickup) > generator.nextInt(100)) {
         pickups.add(pickup);
       }
     }
@@ -188,92 +225,243 @@ public class Maze implements Serializable {
   }
 
   /**
-   * This generates an open grid (the walls are only around the perimeter of the rectangle). There
-   * is a random set of items on each Tile.
+   * This fills the grid with Tiles open in the directions given by the masks of
+   * {@link LabyrinthGenerator}. There is a random set of items on each Tile, and at least one gem
+   * on the map.
    *
+   * @param generator the source of the random choices
    * @param mapWidth
    * @param mapHeight
+   * @param openMasks the open directions of each Tile, indexed by {@code x * mapHeight + y}
    */
-  private void generateOpenGrid(int mapWidth, int mapHeight) {
-    grid = new Tile[mapWidth][mapHeight];
+  private void populateGrid(
+      WorldGenerator generator, int mapWidth, int mapHeight, byte[] openMasks) {
+    cells = new CompactGrid(mapWidth, mapHeight);
 
     Coordinates coord = new Coordinates();
-    coord.setX(WorldGenerator.getRandom(mapWidth));
-    coord.setY(WorldGenerator.getRandom(mapHeight));
+    coord.setX(generator.nextInt(mapWidth));
+    coord.setY(generator.nextInt(mapHeight));
     this.startingCoordinates = coord;
 
-    Map<Creature, Integer> potentialCreatures = new HashMap<Creature, Integer>();
-    potentialCreatures.put(new CreatureTypes.Dragon(), 10);
-    potentialCreatures.put(new CreatureTypes.Spider(), 10);
-    potentialCreatures.put(new CreatureTypes.Sprite(), 10);
-    potentialCreatures.put(new CreatureTypes.Newt(), 10);
-    potentialCreatures.put(new CreatureTypes.Hippogriff(), 10);
-    potentialCreatures.put(new CreatureTypes.Troll(), 10);
-    potentialCreatures.put(new CreatureTypes.Faerie(), 10);
-
-    Map<Pickup, Integer> potentialPickups = new HashMap<Pickup, Integer>();
-    potentialPickups.put(new PickupTypes.Gem(), 10);
-    potentialPickups.put(new PickupTypes.Broadsword(), 10);
-    potentialPickups.put(new PickupTypes.Scimitar(), 10);
-    potentialPickups.put(new PickupTypes.GreaterPot(), 20);
-    potentialPickups.put(new PickupTypes.LesserPot(), 30);
-    potentialPickups.put(new PickupTypes.MagicWand(), 10);
-    potentialPickups.put(new PickupTypes.Battleaxe(), 10);
-
-    // leftmost column
-    Set<Pickup> firstPickups = new HashSet<Pickup>();
-    firstPickups.add(new PickupTypes.Gem()); // ensure at least one gem on map
-    Tile[] col_0 = new Tile[mapHeight];
-    col_0[0] = new Tile(0, 0, null, getRandomCreatures(potentialCreatures), firstPickups, NORTH,
-        EAST);
-    recordGemPresence(col_0[0]);
-    col_0[mapHeight - 1] = new Tile(0, mapHeight - 1, null, getRandomCreatures(potentialCreatures),
-        getRandomPickups(potentialPickups), EAST, SOUTH);
-    recordGemPresence(col_0[mapHeight - 1]);
-    for (int y = 1; y < mapHeight - 1; y++) {
-      col_0[y] = new Tile(0, y, null, getRandomCreatures(potentialCreatures),
-          getRandomPickups(potentialPickups), NORTH, EAST, SOUTH);
-      recordGemPresence(col_0[y]);
-    }
-    grid[0] = col_0;
-    // middle columns
-    for (int x = 1; x < mapWidth - 1; x++) {
-      Tile[] col = new Tile[mapHeight];
-      col[0] = new Tile(x, 0, null, getRandomCreatures(potentialCreatures),
-          getRandomPickups(potentialPickups), NORTH, EAST, WEST);
-      recordGemPresence(col[0]);
-      col[mapHeight - 1] = new Tile(x, mapHeight - 1, null, getRandomCreatures(potentialCreatures),
-          getRandomPickups(potentialPickups), EAST, SOUTH, WEST);
-      recordGemPresence(col[mapHeight - 1]);
-      for (int y = 1; y < mapHeight - 1; y++) {
-        col[y] = new Tile(x, y, null, getRandomCreatures(potentialCreatures),
-            getRandomPickups(potentialPickups), NORTH, EAST, SOUTH, WEST);
-        recordGemPresence(col[y]);
+    // Insertion-ordered, so that the random choices are drawn in the same order for the same seed.
+    // The Tiles share the canonical instances, which the grid stores as type ids.
+    Map<Creature, Integer> potentialCreatures = new LinkedHashMap<Creature, Integer>();
+    potentialCreatures.put(CreatureTypes.DRAGON, 10);
+    potentialCreatures.put(CreatureTypes.SPIDER, 10);
+    potentialCreatures.put(CreatureTypes.SPRITE, 10);
+    potentialCreatures.put(CreatureTypes.NEWT, 10);
+    potentialCreatures.put(CreatureTypes.HIPPOGRIFF, 10);
+    potentialCreatures.put(CreatureTypes.TROLL, 10);
+    potentialCreatures.put(CreatureTypes.FAERIE, 10);
+
+    Map<Pickup, Integer> potentialPickups = new LinkedHashMap<Pickup, Integer>();
+    potentialPickups.put(PickupTypes.GEM, 10);
+    potentialPickups.put(PickupTypes.BROADSWORD, 10);
+    potentialPickups.put(PickupTypes.SCIMITAR, 10);
+    potentialPickups.put(PickupTypes.GREATER_POT, 20);
+    potentialPickups.put(PickupTypes.LESSER_POT, 30);
+    potentialPickups.put(PickupTypes.MAGIC_WAND, 10);
+    potentialPickups.put(PickupTypes.BATTLEAXE, 10);
+
+    for (int x = 0; x < mapWidth; x++) {
+      for (int y = 0; y < mapHeight; y++) {
+        Set<Creature> creatures = getRandomCreatures(generator, potentialCreatures);
+        Set<Pickup> pickups;
+        if (x == 0 && y == 0) {
+          pickups = new HashSet<Pickup>();
+          pickups.add(PickupTypes.GEM); // ensure at least one gem on map
+        } else {
+          pickups = getRandomPickups(generator, potentialPickups);
+        }
+        String description = generator.nextLocationDescription();
+        cells.setOpenMask(x, y, openMasks[x * mapHeight + y]);
+        cells.setDescription(x, y, description);
+        cells.setCreatures(x, y, creatures);
+        cells.setPickups(x, y, pickups);
       }
-      grid[x] = col;
     }
-    // rightmost column
-    Tile[] col_x = new Tile[mapHeight];
-    col_x[0] = new Tile(mapWidth - 1, 0, null, getRandomCreatures(potentialCreatures),
-        getRandomPickups(potentialPickups), NORTH, WEST);
-    recordGemPresence(col_x[0]);
-    col_x[mapHeight - 1] = new Tile(mapWidth - 1, mapHeight - 1, null,
-        getRandomCreatures(potentialCreatures), getRandomPickups(potentialPickups), SOUTH, WEST);
-    recordGemPresence(col_x[mapHeight - 1]);
-    for (int y = 1; y < mapHeight - 1; y++) {
-      col_x[y] = new Tile(mapWidth - 1, y, null, getRandomCreatures(potentialCreatures),
-          getRandomPickups(potentialPickups), NORTH, SOUTH, WEST);
-      recordGemPresence(col_x[y]);
-    }
-    grid[mapWidth - 1] = col_x;
   }
 
+  /**
+   * Builds {@link Tile} views of all the cells of this maze. The Tiles are built on each call; to
+   * change the maze, use {@link #setCreatures} and {@link #setPickups} rather than the Tiles.
+   * <p>
+   * grid[0][0] represents the bottom left-hand corner.
+   */
   public Tile[][] getGrid() {
+    if (cells == null) {
+      return null;
+    }
+    Tile[][] grid = new Tile[cells.width][cells.height];
+    for (int x = 0; x < cells.width; x++) {
+      for (int y = 0; y < cells.height; y++) {
+        grid[x][y] = getTile(x, y);
+      }
+    }
     return grid;
   }
 
+  /**
+   * Replaces the cells of this maze with the given Tiles.
+   */
   public void setGrid(Tile[][] grid) {
-    this.grid = grid;
+    if (grid == null) {
+      cells = null;
+      startDistances = null;
+      gemDistances = null;
+      return;
+    }
+    initGrid(grid.length, grid.length == 0 ? 0 : grid[0].length);
+    for (int x = 0; x < grid.length; x++) {
+      for (int y = 0; y < grid[x].length; y++) {
+        Tile tile = grid[x][y];
+        if (tile != null) {
+          cells.setOpenMask(x, y, toOpenMask(tile.getOpenTo()));
+          cells.setDescription(x, y, tile.getDescription());
+          cells.setCreatures(x, y, tile.getCreatures());
+          cells.setPickups(x, y, tile.getPickups());
+        }
+      }
+    }
+  }
+
+  /**
+   * Replaces the cells of this maze with an empty grid of the given size, in which no cell has a
+   * Tile until its open directions are set.
+   */
+  public void initGrid(int width, int height) {
+    cells = new CompactGrid(width, height);
+    startDistances = null;
+    gemDistances = null;
+  }
+
+  /**
+   * @return whether this maze has any cells at all
+   */
+  public boolean hasGrid() {
+    return cells != null;
+  }
+
+  /**
+   * @return whether (x, y) lies within this maze and has a Tile
+   */
+  public boolean hasTile(int x, int y) {
+    return cells != null && cells.contains(x, y)
+        && (cells.getOpenMask(x, y) & CompactGrid.NO_TILE) == 0;
+  }
+
+  /**
+   * Builds a {@link Tile} view of one cell of this maze. Creatures and pickups of the Tile which
+   * are in the same state as their type are its canonical, unmodifiable instance.
+   *
+   * @return the Tile, or {@code null} if there is none at (x, y)
+   */
+  public Tile getTile(int x, int y) {
+    if (!hasTile(x, y)) {
+      return null;
+    }
+    Tile tile = new Tile();
+    tile.setCoord(new Coordinates(x, y));
+    tile.setOpenTo(fromOpenMask(cells.getOpenMask(x, y)));
+    tile.setDescription(cells.getDescription(x, y));
+    tile.setCreatures(new HashSet<Creature>(cells.getCreatures(x, y)));
+    tile.setPickups(new HashSet<Pickup>(cells.getPickups(x, y)));
+    return tile;
+  }
+
+  /**
+   * @return the open directions of the Tile at (x, y), as a mask in the bit layout of
+   *         {@link LabyrinthGenerator}
+   */
+  public int getOpenMask(int x, int y) {
+    return cells.getOpenMask(x, y);
+  }
+
+  /**
+   * Sets the open directions of the cell at (x, y), which then has a Tile.
+   *
+   * @param mask the open directions in the bit layout of {@link LabyrinthGenerator}
+   */
+  public void setOpenMask(int x, int y, int mask) {
+    cells.setOpenMask(x, y, mask);
+    startDistances = null;
+    gemDistances = null;
+  }
+
+  public String getDescription(int x, int y) {
+    return cells.getDescription(x, y);
+  }
+
+  public void setDescription(int x, int y, String description) {
+    cells.setDescription(x, y, description);
+  }
+
+  /**
+   * @return the creatures on the Tile at (x, y), never {@code null}; use {@link #setCreatures} to
+   *         change them
+   */
+  public Set<Creature> getCreatures(int x, int y) {
+    return Collections.unmodifiableSet(cells.getCreatures(x, y));
+  }
+
+  /**
+   * Replaces the creatures on the Tile at (x, y). The maze keeps the set given, which must not be
+   * modified afterwards.
+   */
+  public void setCreatures(int x, int y, Set<Creature> creatures) {
+    cells.setCreatures(x, y, creatures);
+  }
+
+  /**
+   * @return the pickups on the Tile at (x, y), never {@code null}; use {@link #setPickups} to
+   *         change them
+   */
+  public Set<Pickup> getPickups(int x, int y) {
+    return Collections.unmodifiableSet(cells.getPickups(x, y));
+  }
+
+  /**
+   * Replaces the pickups on the Tile at (x, y). The maze keeps the set given, which must not be
+   * modified afterwards.
+   */
+  public void setPickups(int x, int y, Set<Pickup> pickups) {
+    cells.setPickups(x, y, pickups);
+    gemDistances = null;
+  }
+
+  /**
+   * Compares the creatures and pickups of a Tile with those of the same Tile of another maze,
+   * cheaply if both are stored packed.
+   *
+   * @return {@code true} if they are known to be the same; {@code false} if they differ or need to
+   *         be compared as sets
+   */
+  boolean sameEncounterables(Maze other, int x, int y) {
+    return cells.sameEncounterables(x, y, other.cells);
+  }
+
+  private static int toOpenMask(Set<Cardinal> openTo) {
+    if (openTo == null) {
+      return CompactGrid.NO_DIRECTIONS;
+    }
+    int mask = 0;
+    for (Cardinal direction : openTo) {
+      mask |= 1 << direction.ordinal();
+    }
+    return mask;
+  }
+
+  private static Set<Cardinal> fromOpenMask(int mask) {
+    if ((mask & CompactGrid.NO_DIRECTIONS) != 0) {
+      return null;
+    }
+    Set<Cardinal> openTo = new HashSet<Cardinal>();
+    for (Cardinal direction : Cardinal.values()) {
+      if ((mask & (1 << direction.ordinal())) != 0) {
+        openTo.add(direction);
+      }
+    }
+    return openTo;
   }
 
   public MazeType getType() {
@@ -284,12 +472,171 @@ public class Maze implements Serializable {
     this.type = type;
   }
 
+  /**
+   * @return the {@link Coordinates} of the Tiles with gems on them, column by column, or
+   *         {@code null} if this maze has no cells
+   */
   public ArrayList<Coordinates> getGemsRemaining() {
-    return gemsRemaining;
+    if (cells == null) {
+      return null;
+    }
+    return findPickups(GEM_TYPE_ID, 0, 0, cells.width - 1, cells.height - 1);
+  }
+
+  /**
+   * The gems remaining are indexed from the pickups on the Tiles, so this setter only exists for
+   * the API and ignores its argument; use {@link #setPickups} to add or remove gems.
+   */
+  public void setGemsRemaining(ArrayList<Coordinates> gemsRemaining) {}
+
+  /**
+   * @return whether the Tile at (x, y) has a gem on it
+   */
+  public boolean hasGem(int x, int y) {
+    return hasPickup(x, y, GEM_TYPE_ID);
+  }
+
+  /**
+   * @return the number of Tiles with gems on them
+   */
+  public int countGems() {
+    return countPickups(GEM_TYPE_ID);
+  }
+
+  /**
+   * @return the Coordinates of the gem nearest to (x, y), counting steps along rows and columns
+   *         regardless of walls, or {@code null} if there are no gems left
+   */
+  public Coordinates findNearestGem(int x, int y) {
+    return findNearestPickup(GEM_TYPE_ID, x, y);
+  }
+
+  /**
+   * @param typeId a type id from {@link CreatureTypes}, or {@link CreatureTypes#UNKNOWN} for
+   *        creatures of no registered type
+   * @return whether the Tile at (x, y) has a creature of the type on it
+   */
+  public boolean hasCreature(int x, int y, int typeId) {
+    return hasTile(x, y) && cells.creatureIndex.contains(typeId, cells.index(x, y));
+  }
+
+  /**
+   * @param typeId a type id from {@link PickupTypes}, or {@link PickupTypes#UNKNOWN} for pickups of
+   *        no registered type
+   * @return whether the Tile at (x, y) has a pickup of the type on it
+   */
+  public boolean hasPickup(int x, int y, int typeId) {
+    return hasTile(x, y) && cells.pickupIndex.contains(typeId, cells.index(x, y));
+  }
+
+  /**
+   * @return the number of Tiles with a creature of the type on them
+   */
+  public int countCreatures(int typeId) {
+    return cells == null ? 0 : cells.creatureIndex.count(typeId);
+  }
+
+  /**
+   * @return the number of Tiles with a pickup of the type on them
+   */
+  public int countPickups(int typeId) {
+    return cells == null ? 0 : cells.pickupIndex.count(typeId);
+  }
+
+  /**
+   * Finds the Tiles with a creature of the type on them within a rectangle of the maze.
+   *
+   * @param typeId a type id from {@link CreatureTypes}
+   * @param minX the first column of the rectangle
+   * @param minY the first row of the rectangle
+   * @param maxX the last column of the rectangle, inclusive
+   * @param maxY the last row of the rectangle, inclusive
+   * @return the Coordinates of the Tiles, column by column
+   */
+  public ArrayList<Coordinates> findCreatures(int typeId, int minX, int minY, int maxX, int maxY) {
+    return cells == null ? new ArrayList<Coordinates>()
+        : find(cells.creatureIndex, typeId, minX, minY, maxX, maxY);
   }
 
-  public void setGemsRemaining(ArrayList<Coordinates> gemsRemaining) {
-    this.gemsRemaining = gemsRemaining;
+  /**
+   * Finds the Tiles with a pickup of the type on them within a rectangle of the maze.
+   *
+   * @param typeId a type id from {@link PickupTypes}
+   * @param minX the first column of the rectangle
+   * @param minY the first row of the rectangle
+   * @param maxX the last column of the rectangle, inclusive
+   * @param maxY the last row of the rectangle, inclusive
+   * @return the Coordinates of the Tiles, column by column
+   */
+  public ArrayList<Coordinates> findPickups(int typeId, int minX, int minY, int maxX, int maxY) {
+    return cells == null ? new ArrayList<Coordinates>()
+        : find(cells.pickupIndex, typeId, minX, minY, maxX, maxY);
+  }
+
+  /**
+   * @return the Coordinates of the creature of the type nearest to (x, y), counting steps along
+   *         rows and columns regardless of walls, or {@code null} if there is none
+   */
+  public Coordinates findNearestCreature(int typeId, int x, int y) {
+    return cells == null ? null : toCoordinates(cells.creatureIndex.nearest(typeId, x, y));
+  }
+
+  /**
+   * @return the Coordinates of the pickup of the type nearest to (x, y), counting steps along rows
+   *         and columns regardless of walls, or {@code null} if there is none
+   */
+  public Coordinates findNearestPickup(int typeId, int x, int y) {
+    return cells == null ? null : toCoordinates(cells.pickupIndex.nearest(typeId, x, y));
+  }
+
+  private ArrayList<Coordinates> find(
+      SpatialIndex index, int typeId, int minX, int minY, int maxX, int maxY) {
+    ArrayList<Coordinates> found = new ArrayList<Coordinates>();
+    minX = Math.max(minX, 0);
+    minY = Math.max(minY, 0);
+    maxX = Math.min(maxX, cells.width - 1);
+    maxY = Math.min(maxY, cells.height - 1);
+    if (minY > maxY) {
+      return found;
+    }
+    for (int x = minX; x <= maxX; x++) {
+      int end = cells.index(x, maxY);
+      for (int i = index.next(typeId, cells.index(x, minY)); i >= 0 && i <= end;
+          i = index.next(typeId, i + 1)) {
+        found.add(toCoordinates(i));
+      }
+    }
+    return found;
+  }
+
+  private Coordinates toCoordinates(int index) {
+    return index < 0 ? null : new Coordinates(index / cells.height, index % cells.height);
+  }
+
+  @ApiResourceProperty(ignored = AnnotationBoolean.TRUE)
+  public Long getSeed() {
+    return seed;
+  }
+
+  @ApiResourceProperty(ignored = AnnotationBoolean.TRUE)
+  public void setSeed(Long seed) {
+    this.seed = seed;
+  }
+
+  /**
+   * @return the number of columns of Tiles
+   */
+  @ApiResourceProperty(ignored = AnnotationBoolean.TRUE)
+  public int getWidth() {
+    return cells == null ? 0 : cells.width;
+  }
+
+  /**
+   * @return the number of rows of Tiles
+   */
+  @ApiResourceProperty(ignored = AnnotationBoolean.TRUE)
+  public int getHeight() {
+    return cells == null ? 0 : cells.height;
   }
 
   public Coordinates getStartingCoordinates() {
@@ -298,5 +645,83 @@ public class Maze implements Serializable {
 
   public void setStartingCoordinates(Coordinates coordinates) {
     this.startingCoordinates = coordinates;
+    this.startDistances = null;
+  }
+
+  /**
+   * @return the number of moves from each Tile to the starting Tile, following the open directions
+   *         of the Tiles, or {@code null} if this maze has no cells
+   */
+  @ApiResourceProperty(ignored = AnnotationBoolean.TRUE)
+  public DistanceField getDistancesToStart() {
+    if (startDistances == null && cells != null) {
+        int[] sources = new int[0];
+      if (startingCoordinates != null
+          && cells.contains(startingCoordinates.x, startingCoordinates.y)) {
+        sources = new int[] {cells.index(startingCoordinates.x, startingCoordinates.y)};
+      }
+      startDistances = new DistanceField(cells, sources);
+    }
+    return startDistances;
+  }
+
+  /**
+   * @return the number of moves from each Tile to the nearest Tile with a gem on it, following the
+   *         open directions of the Tiles, or {@code null} if this maze has no cells
+   */
+  @ApiResourceProperty(ignored = AnnotationBoolean.TRUE)
+  public DistanceField getDistancesToGems() {
+    if (gemDistances == null && cells != null) {
+        int[] sources = new int[cells.pickupIndex.count(GEM_TYPE_ID)];
+      int count = 0;
+      for (int index = cells.pickupIndex.next(GEM_TYPE_ID, 0); index >= 0;
+          index = cells.pickupIndex.next(GEM_TYPE_ID, index + 1)) {
+        sources[count++] = index;
+      }
+      gemDistances = new DistanceField(cells, sources);
+    }
+    return gemDistances;
+  }
+
+  /**
+   * @return the number of moves from (x, y) to the starting Tile, or
+   *         {@link DistanceField#UNREACHABLE} if it cannot be reached
+   */
+  public int getDistanceToStart(int x, int y) {
+    return cells == null ? DistanceField.UNREACHABLE : getDistancesToStart().getDistance(x, y);
+  }
+
+  /**
+   * @return whether the starting Tile can be reached from (x, y)
+   */
+  public boolean isReachable(int x, int y) {
+    return getDistanceToStart(x, y) != DistanceField.UNREACHABLE;
+  }
+
+  /**
+   * @return the direction of the first move on a shortest path from (x, y) to the nearest gem, or
+   *         {@code null} if there is a gem at (x, y) or none can be reached from it
+   */
+  public Cardinal nextStepTowardNearestGem(int x, int y) {
+    return cells == null ? null : getDistancesToGems().nextStep(x, y);
+  }
+
+  /**
+   * @return a deep copy of this Maze, which can be modified without affecting this one
+   */
+  public Maze copy() {
+    try {
+      return WorldCodec.decode(WorldCodec.encode(this), Maze.class);
+    } catch (IOException e) {
+      throw new IllegalStateException("Unable to copy maze.", e);
+    }
+  }
+
+  /**
+   * Serializes this Maze through {@link WorldCodec} rather than the default Java form, which keeps
+   * Memcache values small. Mazes written in the default form can still be read.
+   */
+  private Object writeReplace() throws ObjectStreamException {
+    return WorldCodec.serializedForm(this);
   }
 }
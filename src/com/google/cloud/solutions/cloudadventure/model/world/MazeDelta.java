@@ -0,0 +1,198 @@
+/*
+ * Copyright 2013 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package com.google.cloud.solutions.cloudadventure.model.world;
+
+import com.google.cloud.solutions.cloudadventure.model.world.Tile.Coordinates;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+
+/**
+ * The changes a player has made to their view of the game {@link Maze}: gems collected, tiles
+ * looted and creatures killed or wounded. Together with the game maze it describes the player's
+ * full view, so that players do not each need to store a copy of the whole maze.
+ */
+public class MazeDelta implements Serializable {
+
+  private static final long serialVersionUID = 1L;
+
+  /**
+   * The {@link Tile}s whose creatures or pickups differ from the game maze, in their current state.
+   */
+  private ArrayList<Tile> changedTiles;
+
+  public MazeDelta() {
+    this.changedTiles = new ArrayList<Tile>();
+  }
+
+  /**
+   * Computes the changes between the game maze and a player's view of it.
+   *
+   * @param original the game maze
+   * @param current the player's view of the maze
+   * @return the delta which turns original into current
+   */
+  public static MazeDelta between(Maze original, Maze current) {
+    MazeDelta delta = new MazeDelta();
+    int width = Math.min(original.getWidth(), current.getWidth());
+    int height = Math.min(original.getHeight(), current.getHeight());
+    for (int x = 0; x < width; x++) {
+      for (int y = 0; y < height; y++) {
+        if (original.hasTile(x, y) && current.hasTile(x, y)
+            && !original.sameEncounterables(current, x, y)
+            && (!sameCreatures(original.getCreatures(x, y), current.getCreatures(x, y))
+                || !samePickups(original.getPickups(x, y), current.getPickups(x, y)))) {
+          Tile changed = new Tile();
+          changed.setCoord(new Coordinates(x, y));
+          changed.setCreatures(new HashSet<Creature>(current.getCreatures(x, y)));
+          changed.setPickups(new HashSet<Pickup>(current.getPickups(x, y)));
+          delta.changedTiles.add(changed);
+        }
+      }
+    }
+    return delta;
+  }
+
+  /**
+   * Builds a player's view of the maze by applying this delta to a copy of the game maze. The
+   * game maze itself is not modified.
+   *
+   * @param original the game maze
+   * @return a new {@link Maze} with the changes applied
+   */
+  public Maze applyTo(Maze original) {
+    Maze maze = original.copy();
+    for (Tile changed : changedTiles) {
+      Coordinates coord = changed.getCoord();
+      if (!maze.hasTile(coord.x, coord.y)) {
+        continue;
+      }
+      maze.setCreatures(coord.x, coord.y, changed.getCreatures());
+      maze.setPickups(coord.x, coord.y, changed.getPickups());
+    }
+    return maze;
+  }
+
+  /**
+   * Builds a player's view of a single Tile of the game maze, without copying the rest of it.
+   *
+   * @param original the game maze
+   * @return the Tile at (x, y) with the changes applied, or {@code null} if there is none
+   */
+  public Tile applyTo(Maze original, int x, int y) {
+    Tile tile = original.getTile(x, y);
+    Tile changed = getChangedTile(x, y);
+    if (tile != null && changed != null) {
+      tile.setCreatures(new HashSet<Creature>(changed.getCreatures()));
+      tile.setPickups(new HashSet<Pickup>(changed.getPickups()));
+    }
+    return tile;
+  }
+
+  /**
+   * @return the changed Tile at (x, y), or {@code null} if it is as in the game maze
+   */
+  public Tile getChangedTile(int x, int y) {
+    for (Tile changed : changedTiles) {
+      Coordinates coord = changed.getCoord();
+      if (coord.x == x && coord.y == y) {
+        return changed;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Records the creatures and pickups of a Tile the player has changed, replacing whatever was
+   * recorded for it before.
+   *
+   * @param tile the Tile in its current state
+   */
+  public void putChangedTile(Tile tile) {
+    Tile changed = new Tile();
+    changed.setCoord(new Coordinates(tile.getCoord().x, tile.getCoord().y));
+    changed.setCreatures(new HashSet<Creature>(tile.getCreatures()));
+    changed.setPickups(new HashSet<Pickup>(tile.getPickups()));
+    // Tiles are equal by their coordinates, so this drops the earlier state of the same Tile.
+    changedTiles.remove(changed);
+    changedTiles.add(changed);
+  }
+
+  private static boolean sameCreatures(Collection<Creature> a, Collection<Creature> b) {
+    if (a == null || b == null) {
+      return a == b;
+    }
+    if (a.size() != b.size()) {
+      return false;
+    }
+    Collection<Creature> unmatched = new HashSet<Creature>(b);
+    for (Creature creature : a) {
+      Creature match = null;
+      for (Creature candidate : unmatched) {
+        if (equal(creature.getName(), candidate.getName())
+            && creature.getHitPoints() == candidate.getHitPoints()) {
+          match = candidate;
+          break;
+        }
+      }
+      if (match == null) {
+        return false;
+      }
+      unmatched.remove(match);
+    }
+    return true;
+  }
+
+  private static boolean samePickups(Collection<Pickup> a, Collection<Pickup> b) {
+    if (a == null || b == null) {
+      return a == b;
+    }
+    if (a.size() != b.size()) {
+      return false;
+    }
+    Collection<Pickup> unmatched = new HashSet<Pickup>(b);
+    for (Pickup pickup : a) {
+      Pickup match = null;
+      for (Pickup candidate : unmatched) {
+        if (equal(pickup.getName(), candidate.getName())
+            && pickup.getNumUses() == candidate.getNumUses()) {
+          match = candidate;
+          break;
+        }
+      }
+      if (match == null) {
+        return false;
+      }
+      unmatched.remove(match);
+    }
+    return true;
+  }
+
+  private static boolean equal(String a, String b) {
+    return a == null ? b == null : a.equals(b);
+  }
+
+  public ArrayList<Tile> getChangedTiles() {
+    return changedTiles;
+  }
+
+  public void setChangedTiles(ArrayList<Tile> changedTiles) {
+    this.changedTiles = changedTiles;
+  }
+}
@@ -30,8 +30,23 @@ public class Pickup implements Serializable {
   private long numUses;
   private long maxEffect;
 
+  /**
+   * Set on the canonical, shared instances of {@link PickupTypes}, which must not change.
+   */
+  private transient boolean shared;
+
   public Pickup() {}
 
+  /**
+   * Creates a copy of another Pickup, which can be modified independently of it.
+   */
+  Pickup(Pickup other) {
+    this.name = other.name;
+    this.description = other.description;
+    this.numUses = other.numUses;
+    this.maxEffect = other.maxEffect;
+  }
+
   public Pickup(String name, String adjective, int numUses, int maxEffect) {
     this.name = name;
     if (maxEffect < 0) {
@@ -51,15 +66,38 @@ public class Pickup implements Serializable {
     return description;
   }
 
+  public void setDescription(String description) {
+    checkModifiable();
+    this.description = description;
+  }
+
   public long getNumUses() {
     return numUses;
   }
 
   public void setNumUses(long numUses) {
+    checkModifiable();
     this.numUses = numUses;
   }
 
   public long getMaxEffect() {
     return maxEffect;
   }
+
+  /**
+   * Marks this instance as a canonical, shared one.
+   *
+   * @return this
+   */
+  Pickup share() {
+    this.shared = true;
+    return this;
+  }
+
+  private void checkModifiable() {
+    if (shared) {
+      throw new UnsupportedOperationException("The canonical " + name
+          + " is shared and cannot be modified; use PickupTypes.create for a copy.");
+    }
+  }
 }
@@ -18,10 +18,109 @@ package com.google.cloud.solutions.cloudadventure.model.world;
 
 import com.google.cloud.solutions.cloudadventure.util.WorldGenerator;
 
+import java.util.HashMap;
+import java.util.Map;
+
 /**
- * Types of Pickups and their stats.
+ * Types of Pickups and their stats, with a registry of their canonical instances by type id.
  */
 public class PickupTypes {
+
+  /*
+   * The canonical instance of each type. They are shared, for example by every Tile of a maze with
+   * the type on it, and cannot be modified; use create() for an instance with its own state.
+   */
+  public static final Pickup GEM = new Gem().share();
+  public static final Pickup GREATER_POT = new GreaterPot().share();
+  public static final Pickup AMULET = new Amulet().share();
+  public static final Pickup LESSER_POT = new LesserPot().share();
+  public static final Pickup ROCK = new Rock().share();
+  public static final Pickup KNIFE = new Knife().share();
+  public static final Pickup DAGGER = new Dagger().share();
+  public static final Pickup SCIMITAR = new Scimitar().share();
+  public static final Pickup CROSSBOW = new Crossbow().share();
+  public static final Pickup BROADSWORD = new Broadsword().share();
+  public static final Pickup MAGIC_WAND = new MagicWand().share();
+  public static final Pickup BATTLEAXE = new Battleaxe().share();
+  public static final Pickup ELVISH_SWORD = new ElvishSword().share();
+
+  /**
+   * Type id of pickups which are not one of the registered types.
+   */
+  public static final int UNKNOWN = 0;
+
+  /**
+   * The registered types, indexed by type id - 1.
+   * <p>
+   * NOTE: the order of this array defines the type ids written to storage. Only ever append to it.
+   */
+  private static final Pickup[] REGISTRY = {
+      GEM, GREATER_POT, AMULET, LESSER_POT, ROCK, KNIFE, DAGGER, SCIMITAR, CROSSBOW, BROADSWORD,
+      MAGIC_WAND, BATTLEAXE, ELVISH_SWORD };
+
+  private static final Map<String, Integer> IDS = new HashMap<String, Integer>();
+
+  static {
+    for (int i = 0; i < REGISTRY.length; i++) {
+      IDS.put(REGISTRY[i].getName(), i + 1);
+    }
+  }
+
+  private PickupTypes() {}
+
+  /**
+   * @return the number of registered types; type ids run from 1 to this number
+   */
+  public static int size() {
+    return REGISTRY.length;
+  }
+
+  /**
+   * @param id a type id
+   * @return the canonical instance of the type
+   * @throws IllegalArgumentException if there is no type with the id
+   */
+  public static Pickup get(int id) {
+    if (id < 1 || id > REGISTRY.length) {
+      throw new IllegalArgumentException("Unknown pickup type id " + id);
+    }
+    return REGISTRY[id - 1];
+  }
+
+  /**
+   * @param name the name of a pickup
+   * @return the id of the type with that name, or {@link #UNKNOWN}
+   */
+  public static int getId(String name) {
+    Integer id = IDS.get(name);
+    return id == null ? UNKNOWN : id;
+  }
+
+  /**
+   * @return the id of the type of which pickup is an unmodified instance, apart from its
+   *         number of uses, or {@link #UNKNOWN} if it is not one
+   */
+  static int getExactId(Pickup pickup) {
+    int id = getId(pickup.getName());
+    if (id == UNKNOWN) {
+      return UNKNOWN;
+    }
+    Pickup canonical = REGISTRY[id - 1];
+    if (canonical.getMaxEffect() != pickup.getMaxEffect()
+        || !canonical.getDescription().equals(pickup.getDescription())) {
+      return UNKNOWN;
+    }
+    return id;
+  }
+
+  /**
+   * @param type a canonical instance, or any other instance to copy
+   * @return a new instance of the type, which can be modified
+   */
+  public static Pickup create(Pickup type) {
+    return new Pickup(type);
+  }
+
   public static class Gem extends Pickup {
     private static final long serialVersionUID = 1L;
 
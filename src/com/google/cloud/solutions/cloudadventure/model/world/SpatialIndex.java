@@ -0,0 +1,107 @@
+/*
+ * Copyright 2013 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package com.google.cloud.solutions.cloudadventure.model.world;
+
+import java.util.BitSet;
+
+/**
+ * Records which cells of a {@link CompactGrid} hold something of each type, as one bit per cell
+ * for each type id, along with the number of such cells. Presence checks and updates take constant
+ * time, and the cells of a type are found by scanning its bits, 64 cells at a time.
+ * <p>
+ * Type id 0 stands for everything which is not of a registered type.
+ */
+final class SpatialIndex {
+
+  private final int height;
+  private final BitSet[] cells;
+  private final int[] counts;
+
+  /**
+   * @param types the number of registered types
+   * @param height the number of rows of the grid, which maps (x, y) to cell index
+   *        {@code x * height + y}
+   */
+  SpatialIndex(int types, int height) {
+    this.height = height;
+    this.cells = new BitSet[types + 1];
+    this.counts = new int[types + 1];
+  }
+
+  boolean contains(int type, int index) {
+    return type >= 0 && type < cells.length && cells[type] != null && cells[type].get(index);
+  }
+
+  void set(int type, int index, boolean present) {
+    if (contains(type, index) == present) {
+      return;
+    }
+    if (cells[type] == null) {
+      cells[type] = new BitSet();
+    }
+    cells[type].set(index, present);
+    counts[type] += present ? 1 : -1;
+  }
+
+  /**
+   * Records that the cell holds nothing of any type.
+   */
+  void clear(int index) {
+    for (int type = 0; type < cells.length; type++) {
+      set(type, index, false);
+    }
+  }
+
+  /**
+   * @return the number of cells which hold something of the type
+   */
+  int count(int type) {
+    return type >= 0 && type < counts.length ? counts[type] : 0;
+  }
+
+  /**
+   * @return the first cell index from fromIndex onwards holding something of the type, or -1
+   */
+  int next(int type, int fromIndex) {
+    if (count(type) == 0) {
+      return -1;
+    }
+    return cells[type].nextSetBit(fromIndex);
+  }
+
+  /**
+   * Finds the cell holding something of the type which is nearest to (x, y), counting the steps
+   * along rows and columns, walls aside.
+   *
+   * @return the cell index, or -1 if no cell holds anything of the type
+   */
+  int nearest(int type, int x, int y) {
+    int best = -1;
+    int bestDistance = Integer.MAX_VALUE;
+    for (int index = next(type, 0); index >= 0; index = next(type, index + 1)) {
+      int distance = Math.abs(index / height - x) + Math.abs(index % height - y);
+      if (distance < bestDistance) {
+        best = index;
+        bestDistance = distance;
+        if (distance == 0) {
+          break;
+        }
+      }
+    }
+    return best;
+  }
+}
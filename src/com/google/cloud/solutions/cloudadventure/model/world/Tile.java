@@ -17,8 +17,10 @@
 package com.google.cloud.solutions.cloudadventure.model.world;
 
 import com.google.cloud.solutions.cloudadventure.model.world.Maze.Cardinal;
+import com.google.cloud.solutions.cloudadventure.util.WorldCodec;
 import com.google.cloud.solutions.cloudadventure.util.WorldGenerator;
 
+import java.io.ObjectStreamException;
 import java.io.Serializable;
 import java.util.HashSet;
 import java.util.Set;
@@ -88,7 +90,8 @@ public class Tile implements Serializable {
   }
 
   /**
-   * This class represents the absolute location on {@link Maze}.
+   * This class represents the absolute location on {@link Maze}. Two Coordinates are equal if they
+   * have the same x and y, so they can key maps and sets; they must not be changed while they do.
    */
   public static class Coordinates implements Serializable {
     private static final long serialVersionUID = 1L;
@@ -119,6 +122,33 @@ public class Tile implements Serializable {
       this.y = y;
     }
 
+    /**
+     * @return x and y packed into one long, which is distinct for every pair of coordinates
+     */
+    public long key() {
+      return ((long) x << 32) | (y & 0xFFFFFFFFL);
+    }
+
+    @Override
+    public boolean equals(Object object) {
+      if (this == object) {
+        return true;
+      }
+      if (!(object instanceof Coordinates)) {
+        return false;
+      }
+      Coordinates other = (Coordinates) object;
+      return x == other.x && y == other.y;
+    }
+
+    @Override
+    public int hashCode() {
+      // Multiplying by an odd constant spreads neighbouring columns across the whole int range,
+      // where 31 * x + y would map (0, 31) and (1, 0) to the same hash.
+      int hash = x * 0x9E3779B9 + y;
+      return hash ^ (hash >>> 16);
+    }
+
     @Override
     public String toString() {
       return super.toString() + "[x:" + x + ",y:" + y + "]";
@@ -133,27 +163,54 @@ public class Tile implements Serializable {
     return coord;
   }
 
+  public void setCoord(Coordinates coord) {
+    this.coord = coord;
+  }
+
   public Set<Cardinal> getOpenTo() {
     return openTo;
   }
 
+  public void setOpenTo(Set<Cardinal> openTo) {
+    this.openTo = openTo;
+  }
+
   public String getDescription() {
     return description;
   }
 
+  public void setDescription(String description) {
+    this.description = description;
+  }
+
   public Set<Creature> getCreatures() {
     return creatures;
   }
 
+  public void setCreatures(Set<Creature> creatures) {
+    this.creatures = creatures;
+  }
+
   public Set<Pickup> getPickups() {
     return pickups;
   }
 
+  public void setPickups(Set<Pickup> pickups) {
+    this.pickups = pickups;
+  }
+
+  /**
+   * Serializes this Tile through {@link WorldCodec} rather than the default Java form.
+   */
+  private Object writeReplace() throws ObjectStreamException {
+    return WorldCodec.serializedForm(this);
+  }
+
+  /**
+   * Tiles are equal if they are at the same {@link Coordinates}: a maze has one Tile at each.
+   */
   @Override
   public boolean equals(Object object) {
-    if (object == null) {
-      return false;
-    }
     if (this == object) {
       return true;
     }
@@ -161,13 +218,12 @@ public class Tile implements Serializable {
       return false;
     }
     Tile location = (Tile) object;
-    return this.coord.x == location.coord.x && this.coord.y == location.coord.y
-        && this.openTo.equals(location.openTo);
+    return this.coord == null ? location.coord == null : this.coord.equals(location.coord);
   }
 
   @Override
   public int hashCode() {
-    return (String.valueOf(this.coord.x) + String.valueOf(this.coord.y) + this.openTo).hashCode();
+    return this.coord == null ? 0 : this.coord.hashCode();
   }
 
   @Override
@@ -0,0 +1,130 @@
+/*
+ * Copyright 2013 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package com.google.cloud.solutions.cloudadventure.util;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * A set of strings which answers whether it might contain a string, in a few bits per string. A
+ * string which was added is always reported as possibly contained; a string which was not is
+ * reported as not contained, except for a small fraction of false positives.
+ * <p>
+ * It is safe to use from several threads, and can be stored as bytes with {@link #toBytes}.
+ */
+public class BloomFilter {
+
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+  private final long[] bits;
+  private final int numBits;
+  private final int numHashes;
+
+  /**
+   * @param expectedSize the number of strings the filter should hold at the given rate of false
+   *        positives
+   * @param falsePositiveRate the fraction of strings not added which are reported as contained,
+   *        between 0 and 1
+   */
+  public BloomFilter(int expectedSize, double falsePositiveRate) {
+    int size = Math.max(expectedSize, 1);
+    long optimalBits =
+        (long) Math.ceil(-size * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2)));
+    this.numBits = (int) Math.min(Math.max(optimalBits, 64), Integer.MAX_VALUE - 63);
+    this.numHashes = Math.max(1, (int) Math.round((double) numBits / size * Math.log(2)));
+    this.bits = new long[(numBits + 63) / 64];
+  }
+
+  private BloomFilter(int numBits, int numHashes, long[] bits) {
+    this.numBits = numBits;
+    this.numHashes = numHashes;
+    this.bits = bits;
+  }
+
+  /**
+   * Reads a filter written by {@link #toBytes}.
+   *
+   * @throws IllegalArgumentException if the bytes do not hold a filter
+   */
+  public static BloomFilter fromBytes(byte[] bytes) {
+    ByteBuffer buffer = ByteBuffer.wrap(bytes);
+    if (buffer.remaining() < 8) {
+      throw new IllegalArgumentException("Too few bytes for a filter: " + bytes.length);
+    }
+    int numBits = buffer.getInt();
+    int numHashes = buffer.getInt();
+    long[] bits = new long[(numBits + 63) / 64];
+    if (numBits <= 0 || numHashes <= 0 || buffer.remaining() != bits.length * 8) {
+      throw new IllegalArgumentException("Malformed filter of " + numBits + " bits.");
+    }
+    buffer.asLongBuffer().get(bits);
+    return new BloomFilter(numBits, numHashes, bits);
+  }
+
+  /**
+   * @return the size of the filter and its bits, to be read back with {@link #fromBytes}
+   */
+  public synchronized byte[] toBytes() {
+    ByteBuffer buffer = ByteBuffer.allocate(8 + bits.length * 8);
+    buffer.putInt(numBits);
+    buffer.putInt(numHashes);
+    buffer.asLongBuffer().put(bits);
+    return buffer.array();
+  }
+
+  public synchronized void add(String value) {
+    long hash = hash(value);
+    int h1 = (int) hash;
+    int h2 = (int) (hash >>> 32);
+    for (int i = 0; i < numHashes; i++) {
+      int bit = ((h1 + i * h2) & Integer.MAX_VALUE) % numBits;
+      bits[bit >>> 6] |= 1L << bit;
+    }
+  }
+
+  /**
+   * @return {@code false} if the value was definitely not added; {@code true} if it probably was
+   */
+  public synchronized boolean mightContain(String value) {
+    long hash = hash(value);
+    int h1 = (int) hash;
+    int h2 = (int) (hash >>> 32);
+    for (int i = 0; i < numHashes; i++) {
+      int bit = ((h1 + i * h2) & Integer.MAX_VALUE) % numBits;
+      if ((bits[bit >>> 6] & (1L << bit)) == 0) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * 64-bit FNV-1a over the UTF-8 bytes of the value, with a final mix so that both halves are
+   * usable as independent hashes.
+   */
+  private static long hash(String value) {
+    long hash = 0xcbf29ce484222325L;
+    for (byte b : value.getBytes(UTF_8)) {
+      hash ^= b & 0xFF;
+      hash *= 0x100000001b3L;
+    }
+    hash ^= hash >>> 33;
+    hash *= 0xff51afd7ed558ccdL;
+    hash ^= hash >>> 33;
+    return hash;
+  }
+}
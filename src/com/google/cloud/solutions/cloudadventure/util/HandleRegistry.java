@@ -0,0 +1,426 @@
+/*
+ * Copyright 2013 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package com.google.cloud.solutions.cloudadventure.util;
+
+import com.google.appengine.api.datastore.Blob;
+import com.google.appengine.api.datastore.ConcurrentModificationException;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.EntityNotFoundException;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.datastore.Transaction;
+import com.google.appengine.api.memcache.Expiration;
+import com.google.appengine.api.memcache.MemcacheService.SetPolicy;
+import com.google.appengine.api.taskqueue.DeferredTask;
+import com.google.appengine.api.taskqueue.QueueFactory;
+import com.google.appengine.api.taskqueue.TaskAlreadyExistsException;
+import com.google.appengine.api.taskqueue.TaskOptions;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Claims user handles, which are unique, while keeping Datastore out of the way of handles which
+ * are obviously taken and of concurrent claims of the same handle. A claim goes through:
+ * <ol>
+ * <li>the status of the handle cached in Memcache, which says it is taken for good once it is, or
+ * that it was free a short while ago;</li>
+ * <li>a {@link BloomFilter} of the handles which were taken when it was last built; a handle which
+ * is not in it was free then, so it is not looked up in Datastore before being claimed. The filter
+ * is built by a task, as often as the {@value #BLOOM_REFRESH_MINUTES_PROPERTY} system property
+ * says, and stored in Datastore, from where each instance loads it when a newer one is there.
+ * Until an instance has loaded one, handles are looked up in Datastore;</li>
+ * <li>a reservation in Memcache, added only if not present, so that of several concurrent claims of
+ * a handle only one goes on to Datastore;</li>
+ * <li>a Datastore transaction which creates the Handle entity if it does not exist yet, and which
+ * alone decides whether the claim succeeds.</li>
+ * </ol>
+ */
+public class HandleRegistry {
+
+  private static final Logger LOG = Logger.getLogger(HandleRegistry.class.getName());
+
+  private static final String BLOOM_REFRESH_MINUTES_PROPERTY =
+      "cloudadventure.handles.bloomRefreshMinutes";
+  private static final long BLOOM_REFRESH_MILLIS =
+      Integer.getInteger(BLOOM_REFRESH_MINUTES_PROPERTY, 10) * 60 * 1000L;
+  private static final double BLOOM_FALSE_POSITIVE_RATE = 0.01;
+
+  /**
+   * How often each instance looks for a newer stored filter.
+   */
+  private static final long BLOOM_CHECK_MILLIS = 60 * 1000;
+
+  /**
+   * The most bytes of the stored filter held by one entity, which keeps it under the size limit.
+   */
+  private static final int FILTER_CHUNK_BYTES = 900 * 1024;
+
+  private static final String FILTER_KIND = "HandleFilter";
+  private static final String FILTER_CHUNK_KIND = "HandleFilterChunk";
+
+  private static final int RESERVATION_SECONDS = 30;
+  private static final int FREE_STATUS_SECONDS = 60;
+
+  /**
+   * The number of batches of candidates {@link #suggest} checks before giving up.
+   */
+  private static final int SUGGESTION_ROUNDS = 3;
+
+  private static volatile BloomFilter takenHandles;
+  private static volatile long takenHandlesBuiltAt;
+  private static volatile long takenHandlesCheckedAt;
+  private static final AtomicBoolean checking = new AtomicBoolean();
+
+  /**
+   * Checks whether a handle is taken, without claiming it. A handle claimed very recently on
+   * another instance may be reported as free, but it cannot then be claimed again.
+   *
+   * @param handle the handle to check
+   * @return whether the handle is taken
+   */
+  public static boolean isTaken(final String handle) {
+    Boolean taken = (Boolean) StorageUtils.getMemcache().get(getStatusMemcacheKeyString(handle));
+    if (taken != null) {
+      return taken;
+    }
+    BloomFilter filter = getTakenHandles();
+    if (filter != null && !filter.mightContain(handle)) {
+      return false;
+    }
+    try {
+      StorageUtils.getDatastore().get(StorageUtils.getHandleDatastoreKey(handle));
+      taken = true;
+    } catch (EntityNotFoundException e) {
+      taken = false;
+    }
+    cacheStatus(handle, taken);
+    return taken;
+  }
+
+  /**
+   * Checks which of several handles are taken, without claiming any, with one batch get from
+   * Memcache and at most one from Datastore for the handles whose status is not cached. Unlike
+   * {@link #isTaken}, it does not trust the filter of taken handles: a handle it reports as free is
+   * shown to users as available, and the filter misses the handles claimed since it was built.
+   *
+   * @param handles the handles to check
+   * @return those of the handles which are taken
+   */
+  public static Set<String> findTaken(final Collection<String> handles) {
+    Set<String> taken = new HashSet<String>();
+    List<String> memcacheKeys = new ArrayList<String>();
+    for (String handle : handles) {
+      memcacheKeys.add(getStatusMemcacheKeyString(handle));
+    }
+    Map<String, Object> cached = memcacheKeys.isEmpty()
+        ? Collections.<String, Object>emptyMap()
+        : StorageUtils.getMemcache().getAll(memcacheKeys);
+
+    Map<Key, String> unknown = new LinkedHashMap<Key, String>();
+    for (String handle : handles) {
+      Boolean status = (Boolean) cached.get(getStatusMemcacheKeyString(handle));
+      if (status == null) {
+        unknown.put(StorageUtils.getHandleDatastoreKey(handle), handle);
+      } else if (status) {
+        taken.add(handle);
+      }
+    }
+    if (unknown.isEmpty()) {
+      return taken;
+    }
+
+    Map<Key, Entity> found = StorageUtils.getDatastore().get(unknown.keySet());
+    Map<String, Boolean> takenStatuses = new HashMap<String, Boolean>();
+    Map<String, Boolean> freeStatuses = new HashMap<String, Boolean>();
+    for (Map.Entry<Key, String> entry : unknown.entrySet()) {
+      String handle = entry.getValue();
+      if (found.containsKey(entry.getKey())) {
+        taken.add(handle);
+        takenStatuses.put(getStatusMemcacheKeyString(handle), true);
+      } else {
+        freeStatuses.put(getStatusMemcacheKeyString(handle), false);
+      }
+    }
+    StorageUtils.getMemcache().putAll(takenStatuses);
+    StorageUtils.getMemcache().putAll(freeStatuses, Expiration.byDeltaSeconds(FREE_STATUS_SECONDS));
+    return taken;
+  }
+
+  /**
+   * Suggests handles which are free, made by appending numbers to a base handle. Candidates are
+   * checked in batches with {@link #findTaken}, so a few round trips at most are made.
+   *
+   * @param base the handle to make variations of
+   * @param count the number of handles to suggest
+   * @return up to count free handles, fewer if not enough were found
+   */
+  public static List<String> suggest(final String base, final int count) {
+    List<String> suggestions = new ArrayList<String>();
+    Set<String> tried = new HashSet<String>();
+    for (int round = 0; round < SUGGESTION_ROUNDS && suggestions.size() < count; round++) {
+      // Short numbers first, longer ones when those are used up.
+      int bound = (int) Math.pow(10, round + 2);
+      List<String> candidates = new ArrayList<String>();
+      for (int i = 0; i < count * 2; i++) {
+        String candidate = base + ThreadLocalRandom.current().nextInt(bound);
+        if (tried.add(candidate)) {
+          candidates.add(candidate);
+        }
+      }
+      Set<String> taken = findTaken(candidates);
+      for (String candidate : candidates) {
+        if (!taken.contains(candidate) && suggestions.size() < count) {
+          suggestions.add(candidate);
+        }
+      }
+    }
+    return suggestions;
+  }
+
+  /**
+   * Claims a handle if no one holds it yet.
+   *
+   * @param handle the handle to claim
+   * @return {@code true} if the handle was claimed; {@code false} if it is taken, or being claimed
+   *         by someone else right now
+   */
+  public static boolean claim(final String handle) {
+    if (isTaken(handle)) {
+      return false;
+    }
+    String reservation = getReservationMemcacheKeyString(handle);
+    boolean reserved = StorageUtils.getMemcache().put(reservation, Boolean.TRUE,
+        Expiration.byDeltaSeconds(RESERVATION_SECONDS), SetPolicy.ADD_ONLY_IF_NOT_PRESENT);
+    if (!reserved && StorageUtils.getMemcache().contains(reservation)) {
+      return false;
+    }
+    // If Memcache is unavailable, the transaction still keeps the claims apart.
+    try {
+      boolean claimed = confirm(handle);
+      cacheStatus(handle, true);
+      if (claimed) {
+        BloomFilter filter = takenHandles;
+        if (filter != null) {
+          filter.add(handle);
+        }
+      }
+      return claimed;
+    } finally {
+      if (reserved) {
+        StorageUtils.getMemcache().delete(reservation);
+      }
+    }
+  }
+
+  /**
+   * Creates the Handle entity in a transaction, unless it exists.
+   *
+   * @return whether the entity was created
+   */
+  private static boolean confirm(String handle) {
+    Key key = StorageUtils.getHandleDatastoreKey(handle);
+    Transaction tx = StorageUtils.getDatastore().beginTransaction();
+    try {
+      StorageUtils.getDatastore().get(tx, key);
+      return false;
+    } catch (EntityNotFoundException e) {
+      StorageUtils.getDatastore().put(tx, new Entity(key));
+      tx.commit();
+      return true;
+    } catch (ConcurrentModificationException e) {
+      // Another claim of the same handle committed first.
+      return false;
+    } finally {
+      if (tx.isActive()) {
+        tx.rollback();
+      }
+    }
+  }
+
+  private static void cacheStatus(String handle, boolean taken) {
+    // A handle once taken stays taken; one which is free may not be for long.
+    StorageUtils.getMemcache().put(getStatusMemcacheKeyString(handle), taken,
+        taken ? null : Expiration.byDeltaSeconds(FREE_STATUS_SECONDS));
+  }
+
+  /**
+   * @return the filter of taken handles, after looking for a newer stored one if it is time to and
+   *         no other request is doing so; {@code null} if none has been loaded yet
+   */
+  private static BloomFilter getTakenHandles() {
+    if (System.currentTimeMillis() - takenHandlesCheckedAt > BLOOM_CHECK_MILLIS
+        && checking.compareAndSet(false, true)) {
+      try {
+        loadTakenHandles();
+      } catch (RuntimeException e) {
+        LOG.warning("Unable to load the filter of taken handles. " + e.getMessage());
+      } finally {
+        takenHandlesCheckedAt = System.currentTimeMillis();
+        checking.set(false);
+      }
+    }
+    return takenHandles;
+  }
+
+  /**
+   * Loads the stored filter if it is newer than the one held by this instance, and queues a rebuild
+   * if none is stored or the stored one is due for one.
+   */
+  private static void loadTakenHandles() {
+    Entity header;
+    try {
+      header = StorageUtils.getDatastore().get(getFilterDatastoreKey());
+    } catch (EntityNotFoundException e) {
+      requestRebuild();
+      return;
+    }
+    long builtAt = (Long) header.getProperty("built_at");
+    if (System.currentTimeMillis() - builtAt > BLOOM_REFRESH_MILLIS) {
+      requestRebuild();
+    }
+    if (builtAt == takenHandlesBuiltAt) {
+      return;
+    }
+
+    List<Key> keys =
+        getFilterChunkDatastoreKeys(builtAt, ((Long) header.getProperty("chunks")).intValue());
+    Map<Key, Entity> chunks = StorageUtils.getDatastore().get(keys);
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    for (Key key : keys) {
+      if (!chunks.containsKey(key)) {
+        // Replaced by a newer filter while being read; that one is loaded on the next check.
+        LOG.info("Chunk " + key.getName() + " of the filter of taken handles is gone.");
+        return;
+      }
+      byte[] chunk = ((Blob) chunks.get(key).getProperty("bits")).getBytes();
+      bytes.write(chunk, 0, chunk.length);
+    }
+    takenHandles = BloomFilter.fromBytes(bytes.toByteArray());
+    takenHandlesBuiltAt = builtAt;
+    LOG.info("Loaded the filter of taken handles built at " + builtAt + ".");
+  }
+
+  /**
+   * Queues a task to rebuild the stored filter, unless one was queued in the current period.
+   */
+  private static void requestRebuild() {
+    long period = System.currentTimeMillis() / BLOOM_REFRESH_MILLIS;
+    try {
+      QueueFactory.getDefaultQueue().add(TaskOptions.Builder
+          .withPayload(new Rebuild())
+          .taskName("rebuild-handle-filter-" + period));
+    } catch (TaskAlreadyExistsException e) {
+      // A rebuild is already on its way.
+    } catch (RuntimeException e) {
+      LOG.log(Level.WARNING, "Failed to queue a rebuild of the filter of taken handles", e);
+    }
+  }
+
+  /**
+   * Builds the filter of taken handles from a keys-only scan of the Handle entities and stores it
+   * in chunks, then points the stored filter at them and removes the chunks of the previous one.
+   */
+  private static class Rebuild implements DeferredTask {
+
+    private static final long serialVersionUID = 1L;
+
+    @Override
+    public void run() {
+      // Handles claimed during the scan may be missed, so the filter is as old as its start.
+      long builtAt = System.currentTimeMillis();
+      List<String> handles = new ArrayList<String>();
+      Query q = new Query("Handle").setKeysOnly();
+      for (Entity entity : StorageUtils.getDatastore().prepare(q)
+          .asIterable(FetchOptions.Builder.withChunkSize(1000))) {
+        handles.add(entity.getKey().getName());
+      }
+      // Room for the handles claimed until the next rebuild.
+      BloomFilter filter = new BloomFilter(handles.size() * 2 + 1000, BLOOM_FALSE_POSITIVE_RATE);
+      for (String handle : handles) {
+        filter.add(handle);
+      }
+
+      byte[] bytes = filter.toBytes();
+      List<Entity> chunks = new ArrayList<Entity>();
+      for (int offset = 0; offset < bytes.length; offset += FILTER_CHUNK_BYTES) {
+        int end = Math.min(bytes.length, offset + FILTER_CHUNK_BYTES);
+        Entity chunk = new Entity(getFilterChunkDatastoreKey(builtAt, chunks.size()));
+        chunk.setUnindexedProperty("bits", new Blob(Arrays.copyOfRange(bytes, offset, end)));
+        chunks.add(chunk);
+      }
+      StorageUtils.getDatastore().put(chunks);
+
+      Entity previous;
+      try {
+        previous = StorageUtils.getDatastore().get(getFilterDatastoreKey());
+      } catch (EntityNotFoundException e) {
+        previous = null;
+      }
+      Entity header = new Entity(getFilterDatastoreKey());
+      header.setUnindexedProperty("built_at", builtAt);
+      header.setUnindexedProperty("chunks", (long) chunks.size());
+      StorageUtils.getDatastore().put(header);
+      if (previous != null) {
+        StorageUtils.getDatastore().delete(getFilterChunkDatastoreKeys(
+            (Long) previous.getProperty("built_at"),
+            ((Long) previous.getProperty("chunks")).intValue()));
+      }
+      LOG.info("Rebuilt the filter of " + handles.size() + " taken handles in " + chunks.size()
+          + " chunks.");
+    }
+  }
+
+  private static Key getFilterDatastoreKey() {
+    return KeyFactory.createKey(FILTER_KIND, "current");
+  }
+
+  private static Key getFilterChunkDatastoreKey(long builtAt, int chunk) {
+    return KeyFactory.createKey(FILTER_CHUNK_KIND, builtAt + "#" + chunk);
+  }
+
+  private static List<Key> getFilterChunkDatastoreKeys(long builtAt, int chunks) {
+    List<Key> keys = new ArrayList<Key>();
+    for (int chunk = 0; chunk < chunks; chunk++) {
+      keys.add(getFilterChunkDatastoreKey(builtAt, chunk));
+    }
+    return keys;
+  }
+
+  private static String getStatusMemcacheKeyString(String handle) {
+    return "HandleStatus/" + handle;
+  }
+
+  private static String getReservationMemcacheKeyString(String handle) {
+    return "HandleReservation/" + handle;
+  }
+}
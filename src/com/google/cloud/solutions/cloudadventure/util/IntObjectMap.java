@@ -0,0 +1,177 @@
+/*
+ * Copyright 2013 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package com.google.cloud.solutions.cloudadventure.util;
+
+import java.util.Arrays;
+
+/**
+ * A map from non-negative ints to objects, stored in two parallel arrays with open addressing.
+ * Unlike a {@code HashMap<Integer, V>}, it allocates no object per entry, which makes it suitable
+ * for sparse per-cell data on large grids.
+ *
+ * @param <V> the type of the values
+ */
+public class IntObjectMap<V> {
+
+  private static final int FREE = -1;
+
+  private int[] keys;
+  private Object[] values;
+  private int size;
+
+  public IntObjectMap() {
+    this(8);
+  }
+
+  /**
+   * @param expectedSize the number of entries the map should hold without growing
+   */
+  public IntObjectMap(int expectedSize) {
+    int capacity = 8;
+    while (capacity * 3 < expectedSize * 4) {
+      capacity <<= 1;
+    }
+    allocate(capacity);
+  }
+
+  public int size() {
+    return size;
+  }
+
+  /**
+   * @return the value for key, or {@code null} if there is none
+   */
+  @SuppressWarnings("unchecked")
+  public V get(int key) {
+    int slot = find(key);
+    return slot < 0 ? null : (V) values[slot];
+  }
+
+  /**
+   * Associates value with key, or removes key if value is {@code null}.
+   *
+   * @return the previous value for key, or {@code null} if there was none
+   */
+  @SuppressWarnings("unchecked")
+  public V put(int key, V value) {
+    if (key < 0) {
+      throw new IllegalArgumentException("Negative key " + key);
+    }
+    if (value == null) {
+      return remove(key);
+    }
+    int mask = keys.length - 1;
+    int slot = hash(key) & mask;
+    while (keys[slot] != FREE) {
+      if (keys[slot] == key) {
+        V previous = (V) values[slot];
+        values[slot] = value;
+        return previous;
+      }
+      slot = (slot + 1) & mask;
+    }
+    keys[slot] = key;
+    values[slot] = value;
+    if (++size * 4 > keys.length * 3) {
+      rehash(keys.length << 1);
+    }
+    return null;
+  }
+
+  /**
+   * @return the removed value, or {@code null} if there was none
+   */
+  @SuppressWarnings("unchecked")
+  public V remove(int key) {
+    int slot = find(key);
+    if (slot < 0) {
+      return null;
+    }
+    V previous = (V) values[slot];
+    size--;
+    // Shift later entries of the same probe run back, so that lookups never stop at a hole.
+    int mask = keys.length - 1;
+    int hole = slot;
+    for (int next = (hole + 1) & mask; keys[next] != FREE; next = (next + 1) & mask) {
+      int home = hash(keys[next]) & mask;
+      if (((next - home) & mask) >= ((next - hole) & mask)) {
+        keys[hole] = keys[next];
+        values[hole] = values[next];
+        hole = next;
+      }
+    }
+    keys[hole] = FREE;
+    values[hole] = null;
+    return previous;
+  }
+
+  /**
+   * @return the keys of the map, in ascending order
+   */
+  public int[] keys() {
+    int[] result = new int[size];
+    int i = 0;
+    for (int key : keys) {
+      if (key != FREE) {
+        result[i++] = key;
+      }
+    }
+    Arrays.sort(result);
+    return result;
+  }
+
+  private int find(int key) {
+    if (key < 0) {
+      return -1;
+    }
+    int mask = keys.length - 1;
+    for (int slot = hash(key) & mask; keys[slot] != FREE; slot = (slot + 1) & mask) {
+      if (keys[slot] == key) {
+        return slot;
+      }
+    }
+    return -1;
+  }
+
+  private void rehash(int capacity) {
+    int[] oldKeys = keys;
+    Object[] oldValues = values;
+    allocate(capacity);
+    int mask = capacity - 1;
+    for (int i = 0; i < oldKeys.length; i++) {
+      if (oldKeys[i] != FREE) {
+        int slot = hash(oldKeys[i]) & mask;
+        while (keys[slot] != FREE) {
+          slot = (slot + 1) & mask;
+        }
+        keys[slot] = oldKeys[i];
+        values[slot] = oldValues[i];
+      }
+    }
+  }
+
+  private void allocate(int capacity) {
+    keys = new int[capacity];
+    Arrays.fill(keys, FREE);
+    values = new Object[capacity];
+  }
+
+  private static int hash(int key) {
+    int h = key * 0x9E3779B9;
+    return h ^ (h >>> 16);
+  }
+}
@@ -0,0 +1,155 @@
+/*
+ * Copyright 2013 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package com.google.cloud.solutions.cloudadventure.util;
+
+import java.util.Random;
+
+/**
+ * This class generates the passages of a maze grid as one byte per cell, recording the directions
+ * in which each cell is open. Cell (x, y) is at index {@code x * height + y}, and north is towards
+ * increasing y, matching the layout of {@code Maze.getGrid()}.
+ * <p>
+ * Labyrinths are generated with randomized Kruskal's algorithm over a union-find kept in int
+ * arrays, so time and memory grow linearly with the number of cells and nothing recurses.
+ */
+public class LabyrinthGenerator {
+
+  public static final byte NORTH = 1;
+  public static final byte EAST = 2;
+  public static final byte SOUTH = 4;
+  public static final byte WEST = 8;
+
+  private LabyrinthGenerator() {}
+
+  /**
+   * Generates a perfect labyrinth: every cell can be reached from every other by exactly one path.
+   *
+   * @param width the number of columns
+   * @param height the number of rows
+   * @param random the source of randomness
+   * @return the open directions of each cell
+   */
+  public static byte[] generateLabyrinth(int width, int height, Random random) {
+    int cells = checkedCellCount(width, height);
+    byte[] open = new byte[cells];
+
+    // Each candidate passage is encoded as (cell << 1) | 0 for the passage east of the cell, and
+    // (cell << 1) | 1 for the passage north of it.
+    int[] passages = new int[(width - 1) * height + width * (height - 1)];
+    int count = 0;
+    for (int x = 0; x < width; x++) {
+      for (int y = 0; y < height; y++) {
+        int cell = x * height + y;
+        if (x < width - 1) {
+          passages[count++] = cell << 1;
+        }
+        if (y < height - 1) {
+          passages[count++] = (cell << 1) | 1;
+        }
+      }
+    }
+    for (int i = count - 1; i > 0; i--) {
+      int j = random.nextInt(i + 1);
+      int swap = passages[i];
+      passages[i] = passages[j];
+      passages[j] = swap;
+    }
+
+    int[] parent = new int[cells];
+    byte[] rank = new byte[cells];
+    for (int i = 0; i < cells; i++) {
+      parent[i] = i;
+    }
+    int joined = 0;
+    for (int i = 0; i < count && joined < cells - 1; i++) {
+      int cell = passages[i] >>> 1;
+      boolean north = (passages[i] & 1) != 0;
+      int neighbour = north ? cell + 1 : cell + height;
+      int a = find(parent, cell);
+      int b = find(parent, neighbour);
+      if (a == b) {
+        continue;
+      }
+      if (rank[a] < rank[b]) {
+        parent[a] = b;
+      } else if (rank[a] > rank[b]) {
+        parent[b] = a;
+      } else {
+        parent[b] = a;
+        rank[a]++;
+      }
+      joined++;
+      if (north) {
+        open[cell] |= NORTH;
+        open[neighbour] |= SOUTH;
+      } else {
+        open[cell] |= EAST;
+        open[neighbour] |= WEST;
+      }
+    }
+    return open;
+  }
+
+  /**
+   * Generates an open grid: every cell is open to all of its neighbours, and the only walls are
+   * around the perimeter.
+   *
+   * @param width the number of columns
+   * @param height the number of rows
+   * @return the open directions of each cell
+   */
+  public static byte[] generateOpenGrid(int width, int height) {
+    byte[] open = new byte[checkedCellCount(width, height)];
+    for (int x = 0; x < width; x++) {
+      for (int y = 0; y < height; y++) {
+        byte mask = 0;
+        if (y < height - 1) {
+          mask |= NORTH;
+        }
+        if (x < width - 1) {
+          mask |= EAST;
+        }
+        if (y > 0) {
+          mask |= SOUTH;
+        }
+        if (x > 0) {
+          mask |= WEST;
+        }
+        open[x * height + y] = mask;
+      }
+    }
+    return open;
+  }
+
+  /**
+   * Finds the representative of a cell's set, halving the path to it along the way.
+   */
+  private static int find(int[] parent, int cell) {
+    while (parent[cell] != cell) {
+      parent[cell] = parent[parent[cell]];
+      cell = parent[cell];
+    }
+    return cell;
+  }
+
+  private static int checkedCellCount(int width, int height) {
+    if (width < 1 || height < 1 || (long) width * height > Integer.MAX_VALUE >> 1) {
+      throw new IllegalArgumentException("Invalid maze size " + width + "x" + height);
+    }
+    return width * height;
+  }
+}
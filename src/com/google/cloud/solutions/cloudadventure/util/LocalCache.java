@@ -0,0 +1,86 @@
+/*
+ * Copyright 2013 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package com.google.cloud.solutions.cloudadventure.util;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A small in-instance cache which evicts the least recently used entry once full, and expires
+ * entries a fixed time after they were put. It is meant to sit in front of Memcache for values that
+ * are read far more often than they change; since each instance has its own copy, a value changed
+ * on another instance is only seen here once the entry expires.
+ *
+ * @param <K> the type of the keys
+ * @param <V> the type of the values
+ */
+public class LocalCache<K, V> {
+
+  private final long ttlNanos;
+  private final LinkedHashMap<K, CachedValue<V>> entries;
+
+  private static class CachedValue<V> {
+    final V value;
+    final long expiresAt;
+
+    CachedValue(V value, long expiresAt) {
+      this.value = value;
+      this.expiresAt = expiresAt;
+    }
+  }
+
+  /**
+   * @param maxSize the maximum number of entries kept
+   * @param ttl how long an entry is kept after it is put
+   * @param unit the unit of ttl
+   */
+  public LocalCache(final int maxSize, long ttl, TimeUnit unit) {
+    this.ttlNanos = unit.toNanos(ttl);
+    this.entries = new LinkedHashMap<K, CachedValue<V>>(16, 0.75f, true) {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<K, CachedValue<V>> eldest) {
+        return size() > maxSize;
+      }
+    };
+  }
+
+  /**
+   * @return the value cached for key, or {@code null} if there is none or it has expired
+   */
+  public synchronized V get(K key) {
+    CachedValue<V> entry = entries.get(key);
+    if (entry == null) {
+      return null;
+    }
+    if (System.nanoTime() - entry.expiresAt > 0) {
+      entries.remove(key);
+      return null;
+    }
+    return entry.value;
+  }
+
+  public synchronized void put(K key, V value) {
+    entries.put(key, new CachedValue<V>(value, System.nanoTime() + ttlNanos));
+  }
+
+  public synchronized void invalidate(K key) {
+    entries.remove(key);
+  }
+}
@@ -0,0 +1,71 @@
+/*
+ * Copyright 2013 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package com.google.cloud.solutions.cloudadventure.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+/**
+ * A group of asynchronous Datastore and Memcache writes started by {@link StorageUtils}. The
+ * writes run in parallel with whatever the caller does next; call {@link #join()} before the end
+ * of the request to wait for them to complete.
+ */
+public class PendingWrites {
+
+  private final List<Future<?>> futures = new ArrayList<Future<?>>();
+
+  PendingWrites add(Future<?> future) {
+    futures.add(future);
+    return this;
+  }
+
+  /**
+   * Adds the writes of another group to this one.
+   *
+   * @param other the writes to add
+   * @return this group
+   */
+  public PendingWrites addAll(PendingWrites other) {
+    futures.addAll(other.futures);
+    return this;
+  }
+
+  /**
+   * Waits for all the writes in this group to complete.
+   *
+   * @throws IllegalStateException if any of the writes failed, after waiting for all of them
+   */
+  public void join() {
+    Throwable failure = null;
+    for (Future<?> future : futures) {
+      try {
+        future.get();
+      } catch (ExecutionException e) {
+        failure = failure == null ? e.getCause() : failure;
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        failure = failure == null ? e : failure;
+      }
+    }
+    futures.clear();
+    if (failure != null) {
+      throw new IllegalStateException("Write failed.", failure);
+    }
+  }
+}
@@ -0,0 +1,296 @@
+/*
+ * Copyright 2013 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package com.google.cloud.solutions.cloudadventure.util;
+
+import com.google.cloud.solutions.cloudadventure.model.ActionResult;
+import com.google.cloud.solutions.cloudadventure.model.Player;
+import com.google.cloud.solutions.cloudadventure.model.world.Creature;
+import com.google.cloud.solutions.cloudadventure.model.world.CreatureTypes;
+import com.google.cloud.solutions.cloudadventure.model.world.Maze;
+import com.google.cloud.solutions.cloudadventure.model.world.Maze.Cardinal;
+import com.google.cloud.solutions.cloudadventure.model.world.MazeDelta;
+import com.google.cloud.solutions.cloudadventure.model.world.Pickup;
+import com.google.cloud.solutions.cloudadventure.model.world.PickupTypes;
+import com.google.cloud.solutions.cloudadventure.model.world.Tile;
+import com.google.cloud.solutions.cloudadventure.model.world.Tile.Coordinates;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * The rules of the game, applied on the server to the actions a {@link Player} takes, so that the
+ * client only sends what it wants to do and the server decides what happens.
+ * <p>
+ * A player can move to a neighbouring {@link Tile} its current Tile is open to, fight the hostile
+ * {@link Creature}s on its Tile with the best weapon it carries, pick up the {@link Pickup}s on its
+ * Tile, and use the healing pickups it carries. Each action reads the player's view of just the
+ * Tiles it involves from the game {@link Maze} and the player's {@link MazeDelta}, and records any
+ * change to them in the delta; the game maze itself is never modified.
+ * <p>
+ * An action which the rules do not allow changes nothing and returns a result which says so.
+ */
+public class PlayerActions {
+
+  /**
+   * The damage a player deals without a weapon.
+   */
+  private static final int BARE_HANDS_DAMAGE = 1;
+
+  /**
+   * Moves the player one Tile in a direction its current Tile is open to, and turns it to face
+   * that direction.
+   *
+   * @param player the player, whose personal maze need not be loaded
+   * @param maze the game maze
+   * @param direction the direction to move in
+   * @return the result, with the Tile moved to
+   */
+  public static ActionResult move(Player player, Maze maze, Cardinal direction) {
+    Tile here = getCurrentTile(player, maze);
+    if (here == null || here.getOpenTo() == null || !here.getOpenTo().contains(direction)) {
+      return ActionResult.disallowed("The way " + direction.name().toLowerCase() + " is blocked.");
+    }
+    Coordinates coord = here.getCoord();
+    int x = coord.x;
+    int y = coord.y;
+    switch (direction) {
+      case NORTH:
+        y++;
+        break;
+      case EAST:
+        x++;
+        break;
+      case SOUTH:
+        y--;
+        break;
+      case WEST:
+        x--;
+        break;
+    }
+    Tile there = getDelta(player).applyTo(maze, x, y);
+    if (there == null) {
+      return ActionResult.disallowed("The way " + direction.name().toLowerCase() + " is blocked.");
+    }
+    player.setOrientation(direction);
+    player.setCurrentTile(there);
+    return ActionResult.allowed(player, there.getDescription()).setCurrentTile(there);
+  }
+
+  /**
+   * Strikes a hostile creature on the player's Tile once, with the weapon which can deal the most
+   * damage, or bare hands if the player carries none. A creature which survives strikes back. A
+   * player who dies drops everything it carries on the Tile where it fell, and respawns at the
+   * start of the maze with its base items.
+   *
+   * @param player the player, whose personal maze need not be loaded
+   * @param maze the game maze
+   * @param creatureName the name of the creature to fight
+   * @return the result, with the damage dealt and taken
+   */
+  public static ActionResult fight(Player player, Maze maze, String creatureName) {
+    Tile here = getCurrentTile(player, maze);
+    Creature target = null;
+    if (here != null) {
+      for (Creature creature : here.getCreatures()) {
+        if (creature.getMaxEffect() < 0 && creature.getName().equals(creatureName)) {
+          target = creature;
+          break;
+        }
+      }
+    }
+    if (target == null) {
+      return ActionResult.disallowed("There is no " + creatureName + " to fight here.");
+    }
+
+    Pickup weapon = null;
+    for (Pickup pickup : getPickups(player)) {
+      if (pickup.getMaxEffect() < 0 && pickup.getNumUses() > 0
+          && (weapon == null || pickup.getMaxEffect() < weapon.getMaxEffect())) {
+        weapon = pickup;
+      }
+    }
+    long damageDealt = weapon == null ? BARE_HANDS_DAMAGE : roll(weapon.getMaxEffect());
+    if (weapon != null) {
+      useUp(player, weapon);
+    }
+
+    // The creatures on the Tile may be the shared instances of their types, so replace rather than
+    // modify the one fought.
+    Set<Creature> creatures = new HashSet<Creature>(here.getCreatures());
+    creatures.remove(target);
+    long damageTaken = 0;
+    String message;
+    if (target.getHitPoints() <= damageDealt) {
+      player.setMobsKilled(player.getMobsKilled() + 1);
+      message = "You have slain the " + target.getName() + ".";
+    } else {
+      Creature wounded = CreatureTypes.create(target);
+      wounded.setHitPoints(target.getHitPoints() - damageDealt);
+      creatures.add(wounded);
+      damageTaken = roll(target.getMaxEffect());
+      message = "The " + target.getName() + " strikes back.";
+    }
+    here.setCreatures(creatures);
+
+    player.setCurrentHP(player.getCurrentHP() - damageTaken);
+    boolean died = player.getCurrentHP() <= 0;
+    if (died) {
+      Set<Pickup> pickups = new HashSet<Pickup>(here.getPickups());
+      pickups.addAll(getPickups(player));
+      here.setPickups(pickups);
+    }
+    getDelta(player).putChangedTile(here);
+    if (died) {
+      respawn(player, maze);
+      message = "The " + target.getName() + " has killed you.";
+    } else {
+      player.setCurrentTile(here);
+    }
+    return ActionResult.allowed(player, message)
+        .setCurrentTile(player.getCurrentTile())
+        .setPickups(player.getPickups())
+        .setDamageDealt(damageDealt)
+        .setDamageTaken(damageTaken);
+  }
+
+  /**
+   * Takes a pickup off the player's Tile. Gems are counted; everything else is carried.
+   *
+   * @param player the player, whose personal maze need not be loaded
+   * @param maze the game maze
+   * @param pickupName the name of the pickup to take
+   * @return the result, with the Tile and what the player carries
+   */
+  public static ActionResult pickUp(Player player, Maze maze, String pickupName) {
+    Tile here = getCurrentTile(player, maze);
+    Pickup found = null;
+    if (here != null) {
+      for (Pickup pickup : here.getPickups()) {
+        if (pickup.getName().equals(pickupName)) {
+          found = pickup;
+          break;
+        }
+      }
+    }
+    if (found == null) {
+      return ActionResult.disallowed("There is no " + pickupName + " here.");
+    }
+    Set<Pickup> pickups = new HashSet<Pickup>(here.getPickups());
+    pickups.remove(found);
+    here.setPickups(pickups);
+    getDelta(player).putChangedTile(here);
+    player.setCurrentTile(here);
+
+    if (PickupTypes.getId(found.getName()) == PickupTypes.getId(PickupTypes.GEM.getName())) {
+      player.setGemsCollected(player.getGemsCollected() + 1);
+    } else {
+      List<Pickup> carried = new ArrayList<Pickup>(getPickups(player));
+      carried.add(PickupTypes.create(found));
+      player.setPickups(carried);
+    }
+    return ActionResult.allowed(player, "You pick up the " + found.getName() + ".")
+        .setCurrentTile(here)
+        .setPickups(player.getPickups());
+  }
+
+  /**
+   * Uses a healing pickup the player carries, which restores up to its effect in hit points,
+   * without going over the player's maximum.
+   *
+   * @param player the player, whose personal maze need not be loaded
+   * @param maze the game maze
+   * @param pickupName the name of the pickup to use
+   * @return the result, with what the player carries
+   */
+  public static ActionResult use(Player player, Maze maze, String pickupName) {
+    Pickup item = null;
+    for (Pickup pickup : getPickups(player)) {
+      if (pickup.getMaxEffect() > 0 && pickup.getNumUses() > 0
+          && pickup.getName().equals(pickupName)) {
+        item = pickup;
+        break;
+      }
+    }
+    if (item == null) {
+      return ActionResult.disallowed("You have no " + pickupName + " to use.");
+    }
+    useUp(player, item);
+    player.setCurrentHP(Math.min(player.getMaxHP(), player.getCurrentHP() + item.getMaxEffect()));
+    return ActionResult.allowed(player, "You use the " + item.getName() + ".")
+        .setPickups(player.getPickups());
+  }
+
+  /**
+   * @return the player's view of the Tile it is on, or {@code null} if it is not on the maze
+   */
+  private static Tile getCurrentTile(Player player, Maze maze) {
+    Coordinates coord = player.getCurrentTile() == null
+        ? maze.getStartingCoordinates() : player.getCurrentTile().getCoord();
+    return getDelta(player).applyTo(maze, coord.x, coord.y);
+  }
+
+  private static List<Pickup> getPickups(Player player) {
+    return player.getPickups() == null ? new ArrayList<Pickup>() : player.getPickups();
+  }
+
+  private static MazeDelta getDelta(Player player) {
+    if (player.getMazeDelta() == null) {
+      player.setMazeDelta(new MazeDelta());
+    }
+    return player.getMazeDelta();
+  }
+
+  /**
+   * Takes one use off a pickup the player carries, replacing it with a copy so that the base items
+   * it may share instances with are unaffected, and dropping it once it is used up.
+   */
+  private static void useUp(Player player, Pickup pickup) {
+    List<Pickup> carried = new ArrayList<Pickup>(getPickups(player));
+    int index = carried.indexOf(pickup);
+    if (pickup.getNumUses() > 1) {
+      Pickup used = PickupTypes.create(pickup);
+      used.setNumUses(pickup.getNumUses() - 1);
+      carried.set(index, used);
+    } else {
+      carried.remove(index);
+    }
+    player.setPickups(carried);
+  }
+
+  private static void respawn(Player player, Maze maze) {
+    player.setNumDeaths(player.getNumDeaths() + 1);
+    player.setCurrentHP(player.getMaxHP());
+    List<Pickup> pickups = new ArrayList<Pickup>();
+    if (player.getBaseItems() != null) {
+      for (Pickup pickup : player.getBaseItems()) {
+        pickups.add(PickupTypes.create(pickup));
+      }
+    }
+    player.setPickups(pickups);
+    Coordinates start = maze.getStartingCoordinates();
+    player.setCurrentTile(getDelta(player).applyTo(maze, start.x, start.y));
+  }
+
+  /**
+   * @return a random damage from 1 up to the magnitude of the effect
+   */
+  private static long roll(long maxEffect) {
+    return 1 + WorldGenerator.getRandom((int) Math.max(1, Math.abs(maxEffect)));
+  }
+}
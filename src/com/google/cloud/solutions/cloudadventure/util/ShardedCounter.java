@@ -0,0 +1,192 @@
+/*
+ * Copyright 2013 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package com.google.cloud.solutions.cloudadventure.util;
+
+import com.google.appengine.api.datastore.ConcurrentModificationException;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.EntityNotFoundException;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.Transaction;
+import com.google.appengine.api.memcache.Expiration;
+import com.google.appengine.api.memcache.MemcacheService.SetPolicy;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.logging.Logger;
+
+/**
+ * A set of named counters per owner, spread over a number of shard entities so that concurrent
+ * increments do not contend on one entity group. Each shard is a root entity of its own, holding a
+ * part of every counter of its owner as a property. An increment adds to one shard chosen at
+ * random, in a transaction; a read adds up all the shards with one batch get.
+ * <p>
+ * Totals are cached in Memcache for {@value #CACHE_SECONDS} seconds, and increments are applied to
+ * the cached totals as they are made. A total read from the shards just before a concurrent
+ * increment may miss it until the cache expires.
+ */
+public class ShardedCounter {
+
+  private static final Logger LOG = Logger.getLogger(ShardedCounter.class.getName());
+
+  /**
+   * The number of shards an increment is tried on before giving up on contention.
+   */
+  private static final int INCREMENT_ATTEMPTS = 3;
+
+  private static final int CACHE_SECONDS = 300;
+
+  private final String kind;
+  private final int shards;
+
+  /**
+   * @param kind the Datastore kind of the shard entities, which also prefixes their Memcache keys
+   * @param shards the number of shards per owner; it may be raised later, but never lowered, or the
+   *        counts in the shards beyond the new number are lost
+   */
+  public ShardedCounter(String kind, int shards) {
+    this.kind = kind;
+    this.shards = shards;
+  }
+
+  /**
+   * Adds to counters of an owner, all in one transaction on one shard.
+   *
+   * @param ownerId the owner of the counters
+   * @param deltas the amount to add to each counter, by name
+   * @throws ConcurrentModificationException if every attempt failed on contention
+   */
+  public void increment(String ownerId, Map<String, Long> deltas) {
+    for (int attempt = 1;; attempt++) {
+      Key key = getDatastoreKey(ownerId, ThreadLocalRandom.current().nextInt(shards));
+      Transaction tx = StorageUtils.getDatastore().beginTransaction();
+      try {
+        Entity shard;
+        try {
+          shard = StorageUtils.getDatastore().get(tx, key);
+        } catch (EntityNotFoundException e) {
+          shard = new Entity(key);
+        }
+        for (Map.Entry<String, Long> delta : deltas.entrySet()) {
+          Long count = (Long) shard.getProperty(delta.getKey());
+          shard.setUnindexedProperty(
+              delta.getKey(), (count == null ? 0 : count) + delta.getValue());
+        }
+        StorageUtils.getDatastore().put(tx, shard);
+        tx.commit();
+        break;
+      } catch (ConcurrentModificationException e) {
+        if (attempt >= INCREMENT_ATTEMPTS) {
+          throw e;
+        }
+        LOG.info("Retrying increment on another shard after contention, attempt " + attempt);
+      } finally {
+        if (tx.isActive()) {
+          tx.rollback();
+        }
+      }
+    }
+
+    // Only totals which are already cached are incremented; the others are read from the shards.
+    Map<String, Long> offsets = new HashMap<String, Long>();
+    for (Map.Entry<String, Long> delta : deltas.entrySet()) {
+      offsets.put(getMemcacheKeyString(ownerId, delta.getKey()), delta.getValue());
+    }
+    StorageUtils.getMemcache().incrementAll(offsets);
+  }
+
+  /**
+   * Gets the totals of counters of an owner, from Memcache if they are cached, or else from all
+   * the shards with one batch get.
+   *
+   * @param ownerId the owner of the counters
+   * @param names the names of the counters
+   * @return the total of each counter, by name; 0 for counters which were never incremented
+   */
+  public Map<String, Long> get(String ownerId, Collection<String> names) {
+    List<String> memcacheKeys = new ArrayList<String>();
+    for (String name : names) {
+      memcacheKeys.add(getMemcacheKeyString(ownerId, name));
+    }
+    Map<String, Object> cached = StorageUtils.getMemcache().getAll(memcacheKeys);
+    if (cached.size() == names.size()) {
+      Map<String, Long> totals = new HashMap<String, Long>();
+      for (String name : names) {
+        totals.put(name, (Long) cached.get(getMemcacheKeyString(ownerId, name)));
+      }
+      return totals;
+    }
+
+    Map<String, Long> totals = new HashMap<String, Long>();
+    for (String name : names) {
+      totals.put(name, 0L);
+    }
+    for (Entity shard : StorageUtils.getDatastore().get(getDatastoreKeys(ownerId)).values()) {
+      for (String name : names) {
+        Long count = (Long) shard.getProperty(name);
+        if (count != null) {
+          totals.put(name, totals.get(name) + count);
+        }
+      }
+    }
+    Map<String, Long> backfill = new HashMap<String, Long>();
+    for (String name : names) {
+      backfill.put(getMemcacheKeyString(ownerId, name), totals.get(name));
+    }
+    // Only add: a total incremented since the shards were read is newer than the one read here.
+    StorageUtils.getAsyncMemcache().putAll(
+        backfill, Expiration.byDeltaSeconds(CACHE_SECONDS), SetPolicy.ADD_ONLY_IF_NOT_PRESENT);
+    return totals;
+  }
+
+  /**
+   * Starts removing all the shards of an owner, and its cached totals.
+   *
+   * @param ownerId the owner of the counters
+   * @param names the names of the counters
+   * @return the writes, to be joined before the end of the request
+   */
+  public PendingWrites deleteAsync(String ownerId, Collection<String> names) {
+    List<String> memcacheKeys = new ArrayList<String>();
+    for (String name : names) {
+      memcacheKeys.add(getMemcacheKeyString(ownerId, name));
+    }
+    return new PendingWrites()
+        .add(StorageUtils.getAsyncMemcache().deleteAll(memcacheKeys))
+        .add(StorageUtils.getAsyncDatastore().delete(getDatastoreKeys(ownerId)));
+  }
+
+  private List<Key> getDatastoreKeys(String ownerId) {
+    List<Key> keys = new ArrayList<Key>();
+    for (int shard = 0; shard < shards; shard++) {
+      keys.add(getDatastoreKey(ownerId, shard));
+    }
+    return keys;
+  }
+
+  private Key getDatastoreKey(String ownerId, int shard) {
+    return KeyFactory.createKey(kind, ownerId + "#" + shard);
+  }
+
+  private String getMemcacheKeyString(String ownerId, String name) {
+    return kind + "/" + ownerId + "/" + name;
+  }
+}
@@ -16,19 +16,34 @@
 
 package com.google.cloud.solutions.cloudadventure.util;
 
+import com.google.appengine.api.datastore.AsyncDatastoreService;
 import com.google.appengine.api.datastore.Blob;
+import com.google.appengine.api.datastore.ConcurrentModificationException;
 import com.google.appengine.api.datastore.DatastoreService;
 import com.google.appengine.api.datastore.DatastoreServiceFactory;
 import com.google.appengine.api.datastore.Entity;
 import com.google.appengine.api.datastore.EntityNotFoundException;
 import com.google.appengine.api.datastore.Key;
 import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.PropertyProjection;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.datastore.Query.Filter;
+import com.google.appengine.api.datastore.Query.FilterOperator;
+import com.google.appengine.api.datastore.Transaction;
+import com.google.appengine.api.datastore.TransactionOptions;
+import com.google.appengine.api.memcache.AsyncMemcacheService;
 import com.google.appengine.api.memcache.ErrorHandlers;
+import com.google.appengine.api.memcache.Expiration;
 import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheService.IdentifiableValue;
+import com.google.appengine.api.memcache.MemcacheService.SetPolicy;
 import com.google.appengine.api.memcache.MemcacheServiceFactory;
 import com.google.cloud.solutions.cloudadventure.model.Game;
+import com.google.cloud.solutions.cloudadventure.model.GameRoster;
 import com.google.cloud.solutions.cloudadventure.model.Player;
 import com.google.cloud.solutions.cloudadventure.model.world.Maze;
+import com.google.cloud.solutions.cloudadventure.model.world.Maze.MazeType;
+import com.google.cloud.solutions.cloudadventure.model.world.MazeDelta;
 import com.google.cloud.solutions.cloudadventure.model.world.Tile;
 
 import java.io.ByteArrayInputStream;
@@ -39,6 +54,15 @@ import java.io.ObjectInputStream;
 import java.io.ObjectOutput;
 import java.io.ObjectOutputStream;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -54,8 +78,40 @@ public class StorageUtils {
 
   private static final Logger LOG = Logger.getLogger(StorageUtils.class.getName());
 
+  /**
+   * The number of times a transaction is attempted before giving up on contention.
+   */
+  private static final int TRANSACTION_ATTEMPTS = 3;
+
+  /**
+   * The number of times a compare-and-set update is attempted before giving up on conflicts.
+   */
+  private static final int UPDATE_ATTEMPTS = 5;
+
+  /**
+   * How long a roster or player dropped from Memcache after a change cannot be added back by
+   * readers which read it from Datastore before the change committed.
+   */
+  private static final long NO_READD_MILLIS = 2000;
+
+  /**
+   * How long the account holding a handle is cached. Handles are unlinked from Memcache as well, so
+   * this only bounds how long a failed delete leaves a stale account.
+   */
+  private static final int HANDLE_ACCOUNT_CACHE_SECONDS = 3600;
+
+  /**
+   * The number of compare-and-set updates which lost to a concurrent update and were retried, and
+   * of those which gave up after {@link #UPDATE_ATTEMPTS}, since this instance started.
+   */
+  private static final AtomicLong UPDATE_CONFLICTS = new AtomicLong();
+  private static final AtomicLong UPDATE_FAILURES = new AtomicLong();
+
   private static MemcacheService memecache = initMemcache();
+  private static AsyncMemcacheService asyncMemcache = initAsyncMemcache();
   private static DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
+  private static AsyncDatastoreService asyncDatastore =
+      DatastoreServiceFactory.getAsyncDatastoreService();
 
   /*
    * Persistence methods.
@@ -66,29 +122,208 @@ public class StorageUtils {
    *         Datastore or Memcache
    */
   public static Game getGame(final String gameId) {
-    Game game = getGameFromMemcache(gameId);
-    if (game == null) {
-      game = getGameFromDatastore(gameId);
-    }
-    return game;
+    return getGames(Collections.singletonList(gameId)).get(gameId);
+  }
+
+  /**
+   * Gets several games with one batch get from Memcache, followed by one batch get from Datastore
+   * for those missing from Memcache. The games read from Datastore are put back into Memcache.
+   *
+   * @param gameIds the IDs of the games to get
+   * @return the games keyed by ID, in the order requested; IDs which cannot be found in either
+   *         Datastore or Memcache are left out
+   */
+  public static Map<String, Game> getGames(final Collection<String> gameIds) {
+    return getAll(GAMES, gameIds);
+  }
+
+  /**
+   * A change to a stored resource, made by {@link #updateGame} or {@link #updatePlayer}. It may be
+   * applied more than once, each time to a freshly read value, if concurrent updates get in the
+   * way; it should not have side effects beyond the value it is given.
+   */
+  public interface Mutation<T> {
+    /**
+     * @param current the value as currently stored, which may be modified and returned
+     * @return the value to store, or {@code null} to leave the stored value as it is
+     */
+    T apply(T current);
+  }
+
+  /**
+   * Updates an existing game on the server with compare-and-set on its Memcache entry, retrying on
+   * a newer copy of the game if a concurrent update gets in first, and writes it through to
+   * Datastore.
+   *
+   * @param gameId the ID of the game to update
+   * @param mutation the change to make to the game
+   * @return the game as stored after the update, or {@code null} if it cannot be found
+   * @throws ConcurrentModificationException if every attempt lost to a concurrent update
+   */
+  public static Game updateGame(final String gameId, final Mutation<Game> mutation) {
+    return update(GAMES, gameId, mutation);
+  }
+
+  /**
+   * Updates an existing player on the server with compare-and-set on its Memcache entry, retrying
+   * on a newer copy of the player if a concurrent update gets in first, and writes it through to
+   * Datastore. Only the changes to the player's maze are stored, as with {@link #writePlayer}.
+   *
+   * @param handle the handle of the player to update
+   * @param mutation the change to make to the player
+   * @return the player as stored after the update, or {@code null} if it cannot be found
+   * @throws ConcurrentModificationException if every attempt lost to a concurrent update
+   */
+  public static Player updatePlayer(final String handle, final Mutation<Player> mutation) {
+    return update(PLAYERS, handle, mutation);
+  }
+
+  /**
+   * @return the number of updates which lost to a concurrent update and were retried since this
+   *         instance started
+   */
+  public static long getUpdateConflicts() {
+    return UPDATE_CONFLICTS.get();
   }
 
   /**
-   * Updates an existing game on the server. This is not threadsafe, so use only when certain of
-   * having no other concurrent updates. For thread safety, use getIdentifiable and putIfUntouched
-   * from {@link MemcacheService} as well as the other utility methods in this class for getting the
-   * Datastore and Memcache keys.
+   * @return the number of updates which gave up after losing to concurrent updates too often since
+   *         this instance started
+   */
+  public static long getUpdateFailures() {
+    return UPDATE_FAILURES.get();
+  }
+
+  /**
+   * Overwrites an existing game on the server. This is not threadsafe, so use only when certain of
+   * having no other concurrent updates, as when creating a game; otherwise use {@link #updateGame}.
    * 
    * @param game the game to write to storage
    */
   public static void writeGame(final Game game) {
-    writeGameToMemcache(game);
-    writeGameToDatastore(game);
+    writeGameAsync(game).join();
+  }
+
+  /**
+   * Starts writing the game to Memcache and Datastore in parallel, without waiting for either. The
+   * same thread safety caveats as for {@link #writeGame} apply.
+   *
+   * @param game the game to write to storage
+   * @return the writes, to be joined before the end of the request
+   */
+  public static PendingWrites writeGameAsync(final Game game) {
+    return new PendingWrites()
+        .add(getAsyncMemcache().put(getGameMemcacheKeyString(game.getId()), game))
+        .add(getAsyncDatastore().put(toGameEntity(game)));
   }
 
+  /**
+   * Removes the game and its {@link GameRoster} from storage. The players are not removed.
+   */
   public static void destroyGame(final String gameId) {
-    removeGameFromMemcache(gameId);
-    removeGameFromDatastore(gameId);
+    destroyGameAsync(gameId, Collections.<String>emptyList()).join();
+  }
+
+  /**
+   * Starts removing the game, its {@link GameRoster} and the given players from storage, with one
+   * batch delete from Memcache and one from Datastore.
+   *
+   * @param gameId the ID of the game to remove
+   * @param handles the handles of the players to remove along with the game
+   * @return the writes, to be joined before the end of the request
+   */
+  public static PendingWrites destroyGameAsync(
+      final String gameId, final Collection<String> handles) {
+    List<String> memcacheKeys = new ArrayList<String>();
+    List<Key> datastoreKeys = new ArrayList<Key>();
+    memcacheKeys.add(getGameMemcacheKeyString(gameId));
+    memcacheKeys.add(getGameRosterMemcacheKeyString(gameId));
+    datastoreKeys.add(getGameDatastoreKey(gameId));
+    datastoreKeys.add(getGameRosterDatastoreKey(gameId));
+    for (String handle : handles) {
+      memcacheKeys.add(getPlayerMemcacheKeyString(handle));
+      datastoreKeys.add(getPlayerDatastoreKey(handle));
+    }
+    return new PendingWrites()
+        .add(getAsyncMemcache().deleteAll(memcacheKeys))
+        .add(getAsyncDatastore().delete(datastoreKeys));
+  }
+
+  /**
+   * @return {@code null} if a {@link GameRoster} for gameId cannot be found in either Datastore or
+   *         Memcache, for example for games created before rosters were introduced
+   */
+  public static GameRoster getGameRoster(final String gameId) {
+    GameRoster roster = getGameRosterFromMemcache(gameId);
+    if (roster == null) {
+      roster = getGameRosterFromDatastore(null, gameId);
+      if (roster != null) {
+        // Only add: a roster put by a concurrent join or leave is newer than the one read here.
+        getSynchronousMemcache().put(getGameRosterMemcacheKeyString(gameId), roster, null,
+            SetPolicy.ADD_ONLY_IF_NOT_PRESENT);
+      }
+    }
+    return roster;
+  }
+
+  /**
+   * Writes a new player and adds its handle to the {@link GameRoster} of its game, in a single
+   * transaction.
+   *
+   * @param player the player joining its game
+   * @param existingHandles the handles to start the roster with if the game does not have one yet
+   */
+  public static void addPlayerToGame(final Player player, final List<String> existingHandles) {
+    updateMazeDelta(player);
+    final String gameId = player.getGameId();
+    GameRoster roster = runInTransaction(new TransactionalWork<GameRoster>() {
+      @Override
+      public GameRoster run(Transaction tx) {
+        GameRoster roster = getGameRosterFromDatastore(tx, gameId);
+        if (roster == null) {
+          roster = GameRoster.create(gameId);
+          roster.getHandles().addAll(existingHandles);
+        }
+        if (!roster.getHandles().contains(player.getHandle())) {
+          roster.getHandles().add(player.getHandle());
+        }
+        getDatastore().put(tx, toGameRosterEntity(roster));
+        getDatastore().put(tx, toPlayerEntity(player));
+        return roster;
+      }
+    });
+    removeGameRosterFromMemcache(gameId);
+    writePlayerToMemcache(player);
+  }
+
+  /**
+   * Removes a player and takes its handle off the {@link GameRoster} of its game, in a single
+   * transaction.
+   *
+   * @param handle the handle of the player leaving the game
+   * @param gameId the ID of the game the player is leaving
+   * @return the handles of the players remaining in the game, or {@code null} if the game has no
+   *         roster
+   */
+  public static List<String> removePlayerFromGame(final String handle, final String gameId) {
+    GameRoster roster = runInTransaction(new TransactionalWork<GameRoster>() {
+      @Override
+      public GameRoster run(Transaction tx) {
+        GameRoster roster = getGameRosterFromDatastore(tx, gameId);
+        if (roster != null) {
+          roster.getHandles().remove(handle);
+          getDatastore().put(tx, toGameRosterEntity(roster));
+        }
+        getDatastore().delete(tx, getPlayerDatastoreKey(handle));
+        return roster;
+      }
+    });
+    removePlayerFromMemcache(handle);
+    if (roster == null) {
+      return null;
+    }
+    removeGameRosterFromMemcache(gameId);
+    return roster.getHandles();
   }
 
   /**
@@ -96,37 +331,322 @@ public class StorageUtils {
    *         Datastore or Memcache
    */
   public static Player getPlayer(final String handle) {
-    Player player = getPlayerFromMemcache(handle);
-    if (player == null) {
-      player = getPlayerFromDatastore(handle);
+    return getPlayers(Collections.singletonList(handle)).get(handle);
+  }
+
+  /**
+   * Gets several players with one batch get from Memcache, followed by one batch get from Datastore
+   * for those missing from Memcache. The players read from Datastore are put back into Memcache.
+   * Their personal mazes are not loaded; see {@link #loadMaze}.
+   *
+   * @param handles the handles of the players to get
+   * @return the players keyed by handle, in the order requested; handles which cannot be found in
+   *         either Datastore or Memcache are left out
+   */
+  public static Map<String, Player> getPlayers(final Collection<String> handles) {
+    return getAll(PLAYERS, handles);
+  }
+
+  /**
+   * Gets the statistics of the players in a game with one projection query on the game ID, which
+   * reads only the indexed scalar statistics and none of the blob properties. Since the query is
+   * eventually consistent, the handles given (usually the {@link GameRoster}) decide who is in the
+   * game: players the query has not caught up with yet, or who were written before their
+   * statistics were indexed, are read with a batch get by key instead. Memcache is not used, since
+   * it only holds whole players.
+   *
+   * @param gameId the ID of the game
+   * @param handles the handles of the players in the game
+   * @return players with only their handle, game ID and scalar statistics filled in, keyed by
+   *         handle, in the order of handles; handles which cannot be found are left out
+   */
+  public static Map<String, Player> getPlayerStats(final String gameId,
+      final Collection<String> handles) {
+    // Served by the composite index on the game ID and the statistics in datastore-indexes.xml.
+    Query q = new Query("Player")
+        .setFilter(new Query.FilterPredicate("game_id", FilterOperator.EQUAL, gameId))
+        .addProjection(new PropertyProjection("orientation", String.class))
+        .addProjection(new PropertyProjection("current_hp", Long.class))
+        .addProjection(new PropertyProjection("max_hp", Long.class))
+        .addProjection(new PropertyProjection("gems_collected", Long.class))
+        .addProjection(new PropertyProjection("mobs_killed", Long.class))
+        .addProjection(new PropertyProjection("num_deaths", Long.class));
+    Map<String, Entity> projected = new HashMap<String, Entity>();
+    for (Entity entity : getDatastore().prepare(q).asIterable()) {
+      projected.put(entity.getKey().getName(), entity);
     }
-    return player;
+
+    List<Key> missing = new ArrayList<Key>();
+    for (String handle : handles) {
+      if (!projected.containsKey(handle)) {
+        missing.add(getPlayerDatastoreKey(handle));
+      }
+    }
+    Map<Key, Entity> fetched = missing.isEmpty()
+        ? Collections.<Key, Entity>emptyMap() : getDatastore().get(missing);
+
+    Map<String, Player> players = new LinkedHashMap<String, Player>();
+    for (String handle : handles) {
+      Entity entity = projected.get(handle);
+      if (entity == null) {
+        entity = fetched.get(getPlayerDatastoreKey(handle));
+      }
+      if (entity != null) {
+        Player player = fromPlayerEntityStats(entity);
+        player.setHandle(handle);
+        player.setGameId(gameId);
+        players.put(handle, player);
+      }
+    }
+    return players;
   }
 
+  /**
+   * Writes the player to storage. If the player carries a personal {@link Maze}, only its changes
+   * relative to the game maze are stored.
+   *
+   * @param player the player to write to storage
+   */
   public static void writePlayer(final Player player) {
-    writePlayerToMemcache(player);
-    writePlayerToDatastore(player);
+    writePlayers(Collections.singletonList(player)).join();
+  }
+
+  /**
+   * Starts writing the players with one batch put to Memcache and one to Datastore, without waiting
+   * for either. As with {@link #writePlayer}, only the changes to each player's maze are stored.
+   *
+   * @param players the players to write to storage
+   * @return the writes, to be joined before the end of the request
+   */
+  public static PendingWrites writePlayers(final Collection<Player> players) {
+    // Players are usually in the same game, whose maze is loaded once for all of them.
+    Set<String> gameIds = new HashSet<String>();
+    for (Player player : players) {
+      if (player.getMaze() != null) {
+        gameIds.add(player.getGameId());
+      }
+    }
+    Map<String, Game> games = gameIds.isEmpty()
+        ? Collections.<String, Game>emptyMap() : getGames(gameIds);
+    Map<String, Player> memcacheValues = new HashMap<String, Player>();
+    List<Entity> entities = new ArrayList<Entity>();
+    for (Player player : players) {
+      updateMazeDelta(player, games.get(player.getGameId()));
+      memcacheValues.put(getPlayerMemcacheKeyString(player.getHandle()), player);
+      entities.add(toPlayerEntity(player));
+    }
+    return new PendingWrites()
+        .add(getAsyncMemcache().putAll(memcacheValues))
+        .add(getAsyncDatastore().put(entities));
   }
 
   public static void destroyPlayer(final String handle) {
-    removePlayerFromMemcache(handle);
-    removePlayerFromDatstore(handle);
+    destroyPlayers(Collections.singletonList(handle)).join();
+  }
+
+  /**
+   * Starts removing the players with one batch delete from Memcache and one from Datastore.
+   *
+   * @param handles the handles of the players to remove
+   * @return the writes, to be joined before the end of the request
+   */
+  public static PendingWrites destroyPlayers(final Collection<String> handles) {
+    List<String> memcacheKeys = new ArrayList<String>();
+    List<Key> datastoreKeys = new ArrayList<Key>();
+    for (String handle : handles) {
+      memcacheKeys.add(getPlayerMemcacheKeyString(handle));
+      datastoreKeys.add(getPlayerDatastoreKey(handle));
+    }
+    return new PendingWrites()
+        .add(getAsyncMemcache().deleteAll(memcacheKeys))
+        .add(getAsyncDatastore().delete(datastoreKeys));
+  }
+
+  /**
+   * Resolves a user handle to the account of the user who holds it, from Memcache, or else from
+   * the "account" property of its Handle entity. Handles claimed before the property was introduced
+   * are resolved with a query on the User entities once, and their Handle entity is filled in.
+   *
+   * @param handle the handle of the user
+   * @return the account, or {@code null} if no user holds the handle
+   */
+  public static String getAccountByHandle(final String handle) {
+    String key = getHandleMemcacheKeyString(handle);
+    String account = (String) getSynchronousMemcache().get(key);
+    if (account != null) {
+      return account;
+    }
+    boolean linked;
+    try {
+      Entity entity = getDatastore().get(getHandleDatastoreKey(handle));
+      account = (String) entity.getProperty("account");
+      // A handle which was unlinked has the property, without a value.
+      linked = entity.hasProperty("account");
+    } catch (EntityNotFoundException e) {
+      linked = false;
+    }
+    if (account == null) {
+      if (linked) {
+        return null;
+      }
+      Filter userHandleFilter =
+          new Query.FilterPredicate("user_handle", FilterOperator.EQUAL, handle);
+      Query q = new Query("User").setFilter(userHandleFilter).setKeysOnly();
+      Entity user = getDatastore().prepare(q).asSingleEntity();
+      if (user == null || !linkHandle(handle, user.getKey().getName())) {
+        return null;
+      }
+      return user.getKey().getName();
+    }
+    getSynchronousMemcache().put(
+        key, account, Expiration.byDeltaSeconds(HANDLE_ACCOUNT_CACHE_SECONDS));
+    return account;
+  }
+
+  /**
+   * Records that a user holds a handle, on its Handle entity, so that {@link #getAccountByHandle}
+   * finds the user with a get. This is done in a transaction, and only if the handle was claimed
+   * with {@link HandleRegistry#claim} and no user has held it since, or if it was released by the
+   * same user. Claims do not record who made them, so the first user to link a claimed handle is
+   * the one who holds it.
+   *
+   * @param handle the handle, as claimed by the user
+   * @param account the account of the user
+   * @return {@code true} if the user now holds the handle; {@code false} if it was never claimed,
+   *         or another user holds or released it
+   */
+  public static boolean linkHandle(final String handle, final String account) {
+    boolean linked = runInTransaction(new TransactionalWork<Boolean>() {
+      @Override
+      public Boolean run(Transaction tx) {
+        Entity entity;
+        try {
+          entity = getDatastore().get(tx, getHandleDatastoreKey(handle));
+        } catch (EntityNotFoundException e) {
+          return false;
+        }
+        Object holder = entity.getProperty("account");
+        if (account.equals(holder)) {
+          return true;
+        }
+        // The property is only absent until the handle is first linked; see unlinkHandle.
+        if (entity.hasProperty("account")
+            && (holder != null || !account.equals(entity.getProperty("released_by")))) {
+          return false;
+        }
+        entity.setUnindexedProperty("account", account);
+        entity.removeProperty("released_by");
+        getDatastore().put(tx, entity);
+        return true;
+      }
+    });
+    if (linked) {
+      getSynchronousMemcache().put(getHandleMemcacheKeyString(handle), account,
+          Expiration.byDeltaSeconds(HANDLE_ACCOUNT_CACHE_SECONDS));
+    } else {
+      LOG.warning("Handle " + handle + " was not claimed, or is held or was released by another"
+          + " user than " + account + ".");
+    }
+    return linked;
+  }
+
+  /**
+   * Records that a user no longer holds a handle, as when it changes to another one. The handle
+   * stays claimed and no longer resolves to the user. Only the same user may link it again.
+   *
+   * @param handle the handle the user held
+   * @param account the account of the user
+   */
+  public static void unlinkHandle(final String handle, final String account) {
+    runInTransaction(new TransactionalWork<Void>() {
+      @Override
+      public Void run(Transaction tx) {
+        Entity entity;
+        try {
+          entity = getDatastore().get(tx, getHandleDatastoreKey(handle));
+        } catch (EntityNotFoundException e) {
+          return null;
+        }
+        if (account.equals(entity.getProperty("account"))) {
+          entity.setUnindexedProperty("account", null);
+          entity.setUnindexedProperty("released_by", account);
+          getDatastore().put(tx, entity);
+        }
+        return null;
+      }
+    });
+    getSynchronousMemcache().delete(getHandleMemcacheKeyString(handle));
+  }
+
+  /**
+   * Rebuilds the personal {@link Maze} of a player from the game maze and the player's
+   * {@link MazeDelta}, if it has not been loaded yet. Stored players do not carry their maze, so
+   * call this before handing a player to a client which needs it.
+   *
+   * @param player the player whose maze to load
+   * @return the same player instance
+   */
+  public static Player loadMaze(final Player player) {
+    if (player == null || player.getMaze() != null) {
+      return player;
+    }
+    Game game = getGame(player.getGameId());
+    if (game == null || game.getMaze() == null) {
+      return player;
+    }
+    MazeDelta delta = player.getMazeDelta();
+    player.setMaze(delta == null ? game.getMaze() : delta.applyTo(game.getMaze()));
+    return player;
   }
 
+  /**
+   * Recomputes the {@link MazeDelta} of a player from its personal maze, if it has one.
+   */
+  private static void updateMazeDelta(final Player player) {
+    if (player.getMaze() != null) {
+      updateMazeDelta(player, getGame(player.getGameId()));
+    }
+  }
+
+  /**
+   * Replaces the maze delta of the player with the changes of its maze relative to that of the
+   * game, which the caller has already loaded.
+   */
+  private static void updateMazeDelta(final Player player, final Game game) {
+    if (player.getMaze() != null && game != null && game.getMaze() != null) {
+      player.setMazeDelta(MazeDelta.between(game.getMaze(), player.getMaze()));
+    }
+  }
+
+
   /*
    * Memcache persistence methods.
    */
 
+  public static MemcacheService getMemcache() {
+    return memecache;
+  }
+
   private static MemcacheService initMemcache() {
     MemcacheService m = MemcacheServiceFactory.getMemcacheService();
     m.setErrorHandler(ErrorHandlers.getConsistentLogAndContinue(Level.INFO));
     return m;
   }
 
+  private static AsyncMemcacheService initAsyncMemcache() {
+    AsyncMemcacheService m = MemcacheServiceFactory.getAsyncMemcacheService();
+    m.setErrorHandler(ErrorHandlers.getConsistentLogAndContinue(Level.INFO));
+    return m;
+  }
+
   private static MemcacheService getSynchronousMemcache() {
     return memecache;
   }
 
+  static AsyncMemcacheService getAsyncMemcache() {
+    return asyncMemcache;
+  }
+
   private static String getGameMemcacheKeyString(final String gameId) {
     return gameId;
   }
@@ -135,40 +655,303 @@ public class StorageUtils {
     return handle;
   }
 
+  private static String getHandleMemcacheKeyString(final String handle) {
+    return "Handle/" + handle;
+  }
+
+  private static String getGameRosterMemcacheKeyString(final String gameId) {
+    return "GameRoster/" + gameId;
+  }
+
+  private static void writePlayerToMemcache(final Player player) {
+    String key = getPlayerMemcacheKeyString(player.getHandle());
+    getSynchronousMemcache().put(key, player);
+  }
+
   /**
-   * @return {@code null} if a {@link Game} with gameId cannot be found in Memcache
+   * Drops a player from Memcache once it has been removed from Datastore. A reader which got the
+   * player from Datastore before the removal committed cannot add it back for a short while.
    */
-  private static Game getGameFromMemcache(final String gameId) {
-    String key = getGameMemcacheKeyString(gameId);
-    return (Game) getSynchronousMemcache().get(key);
+  private static void removePlayerFromMemcache(final String handle) {
+    String key = getPlayerMemcacheKeyString(handle);
+    getSynchronousMemcache().delete(key, NO_READD_MILLIS);
   }
 
-  private static void writeGameToMemcache(final Game game) {
-    String key = getGameMemcacheKeyString(game.getId());
-    getSynchronousMemcache().put(key, game);
+  /**
+   * @return {@code null} if a {@link GameRoster} for gameId cannot be found in Memcache
+   */
+  private static GameRoster getGameRosterFromMemcache(final String gameId) {
+    String key = getGameRosterMemcacheKeyString(gameId);
+    return (GameRoster) getSynchronousMemcache().get(key);
   }
 
-  private static void removeGameFromMemcache(final String gameId) {
-    String key = getGameMemcacheKeyString(gameId);
-    getSynchronousMemcache().delete(key);
+  /**
+   * Drops the cached roster of a game after a change to it has been committed, rather than putting
+   * the changed roster, which could land after that of a later concurrent change. Readers may not
+   * add it back for a moment, so that one which read the roster before the change cannot either.
+   */
+  private static void removeGameRosterFromMemcache(final String gameId) {
+    String key = getGameRosterMemcacheKeyString(gameId);
+    getSynchronousMemcache().delete(key, NO_READD_MILLIS);
   }
 
   /**
-   * @return {@code null} if a {@link Player} with handle cannot be found in Memcache
+   * Describes how one kind of resource is keyed in Memcache and Datastore, and how it is read from
+   * its entity, for {@link #getAll}.
    */
-  private static Player getPlayerFromMemcache(final String handle) {
-    String key = getPlayerMemcacheKeyString(handle);
-    return (Player) getSynchronousMemcache().get(key);
+  private abstract static class Resource<T> {
+    abstract String getMemcacheKeyString(String id);
+
+    abstract Key getDatastoreKey(String id);
+
+    abstract T fromEntity(Entity entity);
+
+    abstract Entity toEntity(T value);
+
+    abstract long getVersion(T value);
+
+    abstract void setVersion(T value, long version);
+
+    /**
+     * Prepares a value for being written to Memcache and Datastore by {@link #update}.
+     */
+    void beforeWrite(String id, T value) {}
   }
 
-  private static void writePlayerToMemcache(final Player player) {
-    String key = getPlayerMemcacheKeyString(player.getHandle());
-    getSynchronousMemcache().put(key, player);
+  private static final Resource<Game> GAMES = new Resource<Game>() {
+    @Override
+    String getMemcacheKeyString(String gameId) {
+      return getGameMemcacheKeyString(gameId);
+    }
+
+    @Override
+    Key getDatastoreKey(String gameId) {
+      return getGameDatastoreKey(gameId);
+    }
+
+    @Override
+    Game fromEntity(Entity entity) {
+      return fromGameEntity(entity);
+    }
+
+    @Override
+    Entity toEntity(Game game) {
+      return toGameEntity(game);
+    }
+
+    @Override
+    long getVersion(Game game) {
+      return game.getVersion();
+    }
+
+    @Override
+    void setVersion(Game game, long version) {
+      game.setVersion(version);
+    }
+  };
+
+  private static final Resource<Player> PLAYERS = new Resource<Player>() {
+    @Override
+    String getMemcacheKeyString(String handle) {
+      return getPlayerMemcacheKeyString(handle);
+    }
+
+    @Override
+    Key getDatastoreKey(String handle) {
+      return getPlayerDatastoreKey(handle);
+    }
+
+    @Override
+    Player fromEntity(Entity entity) {
+      return fromPlayerEntity(entity);
+    }
+
+    @Override
+    Entity toEntity(Player player) {
+      return toPlayerEntity(player);
+    }
+
+    @Override
+    long getVersion(Player player) {
+      return player.getVersion();
+    }
+
+    @Override
+    void setVersion(Player player, long version) {
+      player.setVersion(version);
+    }
+
+    @Override
+    void beforeWrite(String handle, Player player) {
+      updateMazeDelta(player);
+    }
+  };
+
+  /**
+   * Gets resources by ID from Memcache with one batch get, then from Datastore with one batch get
+   * for the ones that were missing, and adds those back to Memcache asynchronously.
+   */
+  @SuppressWarnings("unchecked")
+  private static <T> Map<String, T> getAll(Resource<T> resource, Collection<String> ids) {
+    Map<String, T> found = new HashMap<String, T>();
+    List<String> memcacheKeys = new ArrayList<String>();
+    for (String id : ids) {
+      memcacheKeys.add(resource.getMemcacheKeyString(id));
+    }
+    Map<String, Object> cached = memcacheKeys.isEmpty()
+        ? Collections.<String, Object>emptyMap() : getSynchronousMemcache().getAll(memcacheKeys);
+
+    List<Key> missing = new ArrayList<Key>();
+    for (String id : ids) {
+      T value = (T) cached.get(resource.getMemcacheKeyString(id));
+      if (value != null) {
+        found.put(id, value);
+      } else {
+        missing.add(resource.getDatastoreKey(id));
+      }
+    }
+    if (!missing.isEmpty()) {
+      Map<String, T> backfill = new HashMap<String, T>();
+      for (Entity entity : getDatastore().get(missing).values()) {
+        T value = resource.fromEntity(entity);
+        found.put(entity.getKey().getName(), value);
+        backfill.put(resource.getMemcacheKeyString(entity.getKey().getName()), value);
+      }
+      if (!backfill.isEmpty()) {
+        // Only add: a value put by a concurrent write is newer than the one read here.
+        getAsyncMemcache().putAll(backfill, null, SetPolicy.ADD_ONLY_IF_NOT_PRESENT);
+      }
+    }
+
+    Map<String, T> ordered = new LinkedHashMap<String, T>();
+    for (String id : ids) {
+      if (found.containsKey(id)) {
+        ordered.put(id, found.get(id));
+      }
+    }
+    return ordered;
   }
 
-  private static void removePlayerFromMemcache(final String handle) {
-    String key = getPlayerMemcacheKeyString(handle);
-    getSynchronousMemcache().delete(key);
+  /**
+   * Updates a resource with compare-and-set on its Memcache entry: the value is read along with its
+   * Memcache identity, changed, and put back only if no other update has been put in between, in
+   * which case it is written through to Datastore. Otherwise the update is retried on the newer
+   * value, up to {@link #UPDATE_ATTEMPTS} times. A value which is not in Memcache is first read
+   * from Datastore and added.
+   * <p>
+   * Each update raises the version of the value by one, and the write to Datastore is made in a
+   * transaction which skips it if a newer version is already stored, so that the writes of two
+   * updates which land out of order leave the newer one in Datastore.
+   * <p>
+   * If Memcache is unavailable, the update falls back to a Datastore transaction, which is slower
+   * but just as safe.
+   */
+  @SuppressWarnings("unchecked")
+  private static <T> T update(Resource<T> resource, String id, Mutation<T> mutation) {
+    String key = resource.getMemcacheKeyString(id);
+    for (int attempt = 1; attempt <= UPDATE_ATTEMPTS; attempt++) {
+      IdentifiableValue cached = getSynchronousMemcache().getIdentifiable(key);
+      if (cached == null) {
+        T stored = getFromDatastore(resource, id);
+        if (stored == null) {
+          return null;
+        }
+        getSynchronousMemcache().put(key, stored, null, SetPolicy.ADD_ONLY_IF_NOT_PRESENT);
+        cached = getSynchronousMemcache().getIdentifiable(key);
+        if (cached == null) {
+          LOG.info("Memcache unavailable, updating " + key + " in a transaction instead.");
+          return updateInTransaction(resource, id, mutation);
+        }
+      }
+      T current = (T) cached.getValue();
+      long version = resource.getVersion(current);
+      T updated = mutation.apply(current);
+      if (updated == null) {
+        return current;
+      }
+      resource.setVersion(updated, version + 1);
+      resource.beforeWrite(id, updated);
+      if (getSynchronousMemcache().putIfUntouched(key, cached, updated)) {
+        writeIfNewer(resource, id, updated);
+        return updated;
+      }
+      UPDATE_CONFLICTS.incrementAndGet();
+      LOG.info("Retrying update of " + key + " after a concurrent update, attempt " + attempt);
+    }
+    UPDATE_FAILURES.incrementAndGet();
+    throw new ConcurrentModificationException(
+        "Gave up updating " + key + " after " + UPDATE_ATTEMPTS + " concurrent updates.");
+  }
+
+  /**
+   * Updates a resource in a Datastore transaction, and drops it from Memcache.
+   */
+  private static <T> T updateInTransaction(
+      final Resource<T> resource, final String id, final Mutation<T> mutation) {
+    T result = runInTransaction(new TransactionalWork<T>() {
+      @Override
+      public T run(Transaction tx) {
+        Entity entity;
+        try {
+          entity = getDatastore().get(tx, resource.getDatastoreKey(id));
+        } catch (EntityNotFoundException e) {
+          return null;
+        }
+        T current = resource.fromEntity(entity);
+          long version = resource.getVersion(current);
+        T updated = mutation.apply(current);
+        if (updated == null) {
+          return current;
+        }
+        resource.setVersion(updated, version + 1);
+        resource.beforeWrite(id, updated);
+        getDatastore().put(tx, resource.toEntity(updated));
+        return updated;
+      }
+    });
+    getSynchronousMemcache().delete(resource.getMemcacheKeyString(id));
+    return result;
+  }
+
+  /**
+   * Writes an updated resource to Datastore, unless the version stored there is already as new,
+   * which means that a later update was written first. The check is a best effort, made without a
+   * transaction: the compare-and-set in Memcache has already ordered the updates, and only two
+   * writes racing between this get and put can still land out of order.
+   */
+  private static <T> void writeIfNewer(Resource<T> resource, String id, T value) {
+    try {
+      Entity stored = getDatastore().get(resource.getDatastoreKey(id));
+      long storedVersion = getVersion(stored);
+      if (storedVersion >= resource.getVersion(value)) {
+        LOG.info("Skipping write of version " + resource.getVersion(value) + " of " + id
+            + " over version " + storedVersion + ".");
+        return;
+      }
+    } catch (EntityNotFoundException e) {
+      // Written for the first time, as when the value was only put in Memcache so far.
+    }
+    getDatastore().put(resource.toEntity(value));
+  }
+
+  /**
+   * @return the version of a resource stored in an entity; 0 for entities written before versions
+   *         were introduced
+   */
+  private static long getVersion(Entity entity) {
+    Long version = (Long) entity.getProperty("version");
+    return version == null ? 0 : version;
+  }
+
+  /**
+   * @return {@code null} if the resource cannot be found in Datastore
+   */
+  private static <T> T getFromDatastore(Resource<T> resource, String id) {
+    try {
+      return resource.fromEntity(getDatastore().get(resource.getDatastoreKey(id)));
+    } catch (EntityNotFoundException e) {
+      return null;
+    }
   }
 
   /*
@@ -179,6 +962,10 @@ public class StorageUtils {
     return datastore;
   }
 
+  public static AsyncDatastoreService getAsyncDatastore() {
+    return asyncDatastore;
+  }
+
   public static Key getUserDatastoreKey(final String userAccount) {
     return KeyFactory.createKey("User", userAccount);
   }
@@ -199,6 +986,47 @@ public class StorageUtils {
     return KeyFactory.createKey("Player", handle);
   }
 
+  /**
+   * The roster is a child of its game, so that it is in the same entity group.
+   */
+  private static Key getGameRosterDatastoreKey(final String gameId) {
+    return KeyFactory.createKey(getGameDatastoreKey(gameId), "GameRoster", gameId);
+  }
+
+  /**
+   * A unit of work to be run in a Datastore transaction by {@link #runInTransaction}. It may be run
+   * more than once.
+   */
+  private interface TransactionalWork<T> {
+    T run(Transaction tx);
+  }
+
+  /**
+   * Runs work in a cross-group transaction, retrying it on contention.
+   *
+   * @return the result of the attempt which committed
+   * @throws ConcurrentModificationException if every attempt failed on contention
+   */
+  private static <T> T runInTransaction(TransactionalWork<T> work) {
+    for (int attempt = 1;; attempt++) {
+      Transaction tx = getDatastore().beginTransaction(TransactionOptions.Builder.withXG(true));
+      try {
+        T result = work.run(tx);
+        tx.commit();
+        return result;
+      } catch (ConcurrentModificationException e) {
+        if (attempt >= TRANSACTION_ATTEMPTS) {
+          throw e;
+        }
+        LOG.info("Retrying transaction after contention, attempt " + attempt);
+      } finally {
+        if (tx.isActive()) {
+          tx.rollback();
+        }
+      }
+    }
+  }
+
   public static <T> byte[] serialize(T object) throws IOException {
     ByteArrayOutputStream b = new ByteArrayOutputStream();
     ObjectOutput o = null;
@@ -220,11 +1048,24 @@ public class StorageUtils {
     return (T) o.readObject();
   }
 
+  /**
+   * Reads a value written by {@link #setUnindexedBlobProperty}. Values encoded with
+   * {@link WorldCodec} are decoded with it; anything else, including blobs written before the codec
+   * was introduced, is read with Java serialization.
+   */
   public static <T> T getUnindexedBlobValue(Entity entity, String propertyName, Class<T> clazz) {
     T value = null;
     try {
       Blob blob = (Blob) entity.getProperty(propertyName);
-      value = deserialize(blob.getBytes(), clazz);
+      if (blob == null) {
+        return null;
+      }
+      byte[] bytes = blob.getBytes();
+      if (WorldCodec.isEncoded(bytes)) {
+        value = WorldCodec.decode(bytes, clazz);
+      } else {
+        value = deserialize(bytes, clazz);
+      }
     } catch (IOException e) {
       LOG.warning("Unable to deserialize value in " + propertyName + " from bytes."
           + e.getMessage());
@@ -234,9 +1075,14 @@ public class StorageUtils {
     return value;
   }
 
+  /**
+   * Stores a value as an unindexed {@link Blob}. World model values are encoded with
+   * {@link WorldCodec}; anything else falls back to Java serialization.
+   */
   public static <T> void setUnindexedBlobProperty(Entity entity, String propertyName, T value) {
     try {
-      entity.setUnindexedProperty(propertyName, new Blob(serialize(value)));
+      byte[] bytes = WorldCodec.canEncode(value) ? WorldCodec.encode(value) : serialize(value);
+      entity.setUnindexedProperty(propertyName, new Blob(bytes));
     } catch (IOException e) {
       LOG.warning("Unable to serialize value in " + propertyName + " to bytes." + e.getMessage());
     } catch (IllegalArgumentException e) {
@@ -244,86 +1090,133 @@ public class StorageUtils {
     }
   }
 
-  /**
-   * @return {@code null} if a {@link Game} with gameId cannot be found in the Datastore
-   */
-  private static Game getGameFromDatastore(final String gameId) {
-    Key key = getGameDatastoreKey(gameId);
-    Entity entity;
-    try {
-      entity = getDatastore().get(key);
-    } catch (EntityNotFoundException e) {
-      return null;
-    }
+  private static Game fromGameEntity(final Entity entity) {
     Game game = new Game();
-    game.setId(key.getName());
-    game.setMaze(getUnindexedBlobValue(entity, "original_maze", Maze.class));
+    game.setId(entity.getKey().getName());
+    game.setMaze(fromGameMazeProperties(entity));
     game.setRunning((Boolean) entity.getProperty("is_running"));
+    game.setVersion(getVersion(entity));
     return game;
   }
 
-  private static Game writeGameToDatastore(Game game) {
+  private static Entity toGameEntity(final Game game) {
     Key key = getGameDatastoreKey(game.getId());
     Entity entity = new Entity(key);
-    setUnindexedBlobProperty(entity, "original_maze", game.getMaze());
+    Maze maze = game.getMaze();
+    if (maze != null && maze.getSeed() != null) {
+      entity.setUnindexedProperty("maze_type", maze.getType().name());
+      entity.setUnindexedProperty("maze_width", (long) maze.getWidth());
+      entity.setUnindexedProperty("maze_height", (long) maze.getHeight());
+      entity.setUnindexedProperty("maze_seed", maze.getSeed());
+      entity.setUnindexedProperty("maze_generator", (long) WorldGenerator.VERSION);
+    } else {
+      setUnindexedBlobProperty(entity, "original_maze", maze);
+    }
     entity.setProperty("is_running", game.isRunning());
-    getDatastore().put(entity);
-    return game;
+    entity.setUnindexedProperty("version", game.getVersion());
+    return entity;
   }
 
-  private static void removeGameFromDatastore(final String gameId) {
-    Key key = getGameDatastoreKey(gameId);
-    getDatastore().delete(key);
+  /**
+   * Reads the maze of a game: regenerated from its seed if it was stored as one, or else decoded
+   * from the blob written before mazes could be regenerated.
+   *
+   * @throws IllegalStateException if the maze was generated by a version of
+   *         {@link WorldGenerator} other than the current one, since its seed would now generate a
+   *         different maze than the one the game is being played on
+   */
+  private static Maze fromGameMazeProperties(final Entity entity) {
+    if (!entity.hasProperty("maze_seed")) {
+      return getUnindexedBlobValue(entity, "original_maze", Maze.class);
+    }
+    long generator = (Long) entity.getProperty("maze_generator");
+    if (generator != WorldGenerator.VERSION) {
+      LOG.severe("Cannot regenerate maze of game " + entity.getKey().getName()
+          + " from generator " + generator + " with generator " + WorldGenerator.VERSION);
+      throw new IllegalStateException("Maze of game " + entity.getKey().getName()
+          + " was generated by generator " + generator + ", which is no longer available.");
+    }
+    return new Maze(MazeType.valueOf((String) entity.getProperty("maze_type")),
+        ((Long) entity.getProperty("maze_width")).intValue(),
+        ((Long) entity.getProperty("maze_height")).intValue(),
+        (Long) entity.getProperty("maze_seed"));
   }
 
   /**
-   * @return {@code null} if a {@link Player} with handle cannot be found in the Datastore
+   * @param tx the transaction to read in, or {@code null}
+   * @return {@code null} if a {@link GameRoster} for gameId cannot be found in the Datastore
    */
   @SuppressWarnings("unchecked")
-  private static Player getPlayerFromDatastore(final String handle) {
-    Key key = getPlayerDatastoreKey(handle);
+  private static GameRoster getGameRosterFromDatastore(Transaction tx, final String gameId) {
+    Key key = getGameRosterDatastoreKey(gameId);
     Entity entity;
     try {
-      entity = getDatastore().get(key);
+      entity = getDatastore().get(tx, key);
     } catch (EntityNotFoundException e) {
       return null;
     }
+    GameRoster roster = GameRoster.create(gameId);
+    List<String> handles = (List<String>) entity.getProperty("handles");
+    if (handles != null) {
+      roster.getHandles().addAll(handles);
+    }
+    return roster;
+  }
+
+  private static Entity toGameRosterEntity(final GameRoster roster) {
+    Entity entity = new Entity(getGameRosterDatastoreKey(roster.getGameId()));
+    entity.setUnindexedProperty("handles", roster.getHandles());
+    return entity;
+  }
+
+  /**
+   * Reads only the handle, game ID and scalar statistics of a player from its entity, which may be
+   * the result of a projection without the handle and game ID.
+   */
+  private static Player fromPlayerEntityStats(final Entity entity) {
     Player player = new Player();
     player.setHandle((String) entity.getProperty("handle"));
     player.setGameId((String) entity.getProperty("game_id"));
-    player.setMaze(getUnindexedBlobValue(entity, "maze", Maze.class));
-    player.setCurrentTile(getUnindexedBlobValue(entity, "current_tile", Tile.class));
     player.setOrientation(Maze.Cardinal.valueOf((String) entity.getProperty("orientation")));
     player.setCurrentHP((Long) entity.getProperty("current_hp"));
     player.setMaxHP((Long) entity.getProperty("max_hp"));
     player.setGemsCollected((Long) entity.getProperty("gems_collected"));
     player.setMobsKilled((Long) entity.getProperty("mobs_killed"));
     player.setNumDeaths((Long) entity.getProperty("num_deaths"));
+    return player;
+  }
+
+  @SuppressWarnings("unchecked")
+  private static Player fromPlayerEntity(final Entity entity) {
+    Player player = fromPlayerEntityStats(entity);
+    player.setMazeDelta(getUnindexedBlobValue(entity, "maze_delta", MazeDelta.class));
+    if (player.getMazeDelta() == null) {
+      // Players written before maze deltas were introduced carry a full copy of the maze.
+      player.setMaze(getUnindexedBlobValue(entity, "maze", Maze.class));
+    }
+    player.setCurrentTile(getUnindexedBlobValue(entity, "current_tile", Tile.class));
     player.setPickups(getUnindexedBlobValue(entity, "pickups", ArrayList.class));
     player.setBaseItems(getUnindexedBlobValue(entity, "base_items", ArrayList.class));
+    player.setVersion(getVersion(entity));
     return player;
   }
 
-  private static void writePlayerToDatastore(final Player player) {
+  private static Entity toPlayerEntity(final Player player) {
     Key key = getPlayerDatastoreKey(player.getHandle());
     Entity entity = new Entity(key);
     entity.setProperty("handle", player.getHandle());
     entity.setProperty("game_id", player.getGameId());
-    setUnindexedBlobProperty(entity, "maze", player.getMaze());
+    setUnindexedBlobProperty(entity, "maze_delta", player.getMazeDelta());
     setUnindexedBlobProperty(entity, "current_tile", player.getCurrentTile());
-    entity.setUnindexedProperty("orientation", player.getOrientation().toString());
-    entity.setUnindexedProperty("current_hp", player.getCurrentHP());
-    entity.setUnindexedProperty("max_hp", player.getMaxHP());
-    entity.setUnindexedProperty("gems_collected", player.getGemsCollected());
-    entity.setUnindexedProperty("mobs_killed", player.getMobsKilled());
-    entity.setUnindexedProperty("num_deaths", player.getNumDeaths());
+    entity.setProperty("orientation", player.getOrientation().toString());
+    entity.setProperty("current_hp", player.getCurrentHP());
+    entity.setProperty("max_hp", player.getMaxHP());
+    entity.setProperty("gems_collected", player.getGemsCollected());
+    entity.setProperty("mobs_killed", player.getMobsKilled());
+    entity.setProperty("num_deaths", player.getNumDeaths());
     setUnindexedBlobProperty(entity, "pickups", player.getPickups());
     setUnindexedBlobProperty(entity, "base_items", player.getBaseItems());
-    getDatastore().put(entity);
-  }
-
-  private static void removePlayerFromDatstore(final String handle) {
-    Key key = getPlayerDatastoreKey(handle);
-    getDatastore().delete(key);
+    entity.setUnindexedProperty("version", player.getVersion());
+    return entity;
   }
 }
@@ -0,0 +1,614 @@
+/*
+ * Copyright 2013 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package com.google.cloud.solutions.cloudadventure.util;
+
+import com.google.cloud.solutions.cloudadventure.model.world.Creature;
+import com.google.cloud.solutions.cloudadventure.model.world.CreatureTypes;
+import com.google.cloud.solutions.cloudadventure.model.world.Maze;
+import com.google.cloud.solutions.cloudadventure.model.world.Maze.Cardinal;
+import com.google.cloud.solutions.cloudadventure.model.world.Maze.MazeType;
+import com.google.cloud.solutions.cloudadventure.model.world.MazeDelta;
+import com.google.cloud.solutions.cloudadventure.model.world.Pickup;
+import com.google.cloud.solutions.cloudadventure.model.world.PickupTypes;
+import com.google.cloud.solutions.cloudadventure.model.world.Tile;
+import com.google.cloud.solutions.cloudadventure.model.world.Tile.Coordinates;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectStreamException;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A compact, versioned binary codec for the world model: {@link Maze}, {@link MazeDelta},
+ * {@link Tile}, {@link Creature}, {@link Pickup} and lists of pickups (a {@link Player}
+ * inventory).
+ * <p>
+ * Compared to Java serialization, no class descriptors are written. Open directions are packed
+ * into a 4-bit mask per tile, creature and pickup types are written as small interned ids, tile
+ * descriptions are interned into a per-maze string table, and counters are written as varints.
+ * <p>
+ * Every encoded value starts with {@link #MAGIC} followed by the format version, which can never
+ * be confused with the {@code 0xACED} header of a Java-serialized stream. Use {@link #isEncoded}
+ * to decide which reader to use for existing blobs.
+ */
+public final class WorldCodec {
+
+  /**
+   * First byte of every encoded value.
+   */
+  static final int MAGIC = 0xCA;
+
+  /**
+   * Current version of the format. Values written with any other version are rejected.
+   */
+  static final int VERSION = 1;
+
+  private static final int KIND_MAZE = 1;
+  private static final int KIND_TILE = 2;
+  private static final int KIND_PICKUP_LIST = 3;
+  private static final int KIND_CREATURE = 4;
+  private static final int KIND_PICKUP = 5;
+  private static final int KIND_MAZE_DELTA = 6;
+
+  /**
+   * Type id for creatures and pickups which are not one of the types registered in
+   * {@link CreatureTypes} and {@link PickupTypes}. Their fields are written out in full.
+   */
+  private static final int UNKNOWN_TYPE = 0;
+
+  private WorldCodec() {}
+
+  /**
+   * @return {@code true} if value is of a type which this codec can encode
+   */
+  public static boolean canEncode(Object value) {
+    if (value instanceof Maze || value instanceof MazeDelta || value instanceof Tile
+        || value instanceof Creature || value instanceof Pickup) {
+      return true;
+    }
+    if (value instanceof List) {
+      for (Object element : (List<?>) value) {
+        if (!(element instanceof Pickup)) {
+          return false;
+        }
+      }
+      return true;
+    }
+    return false;
+  }
+
+  /**
+   * @return {@code true} if the bytes were written by this codec rather than Java serialization
+   */
+  public static boolean isEncoded(byte[] bytes) {
+    return bytes != null && bytes.length >= 2 && (bytes[0] & 0xFF) == MAGIC;
+  }
+
+  /**
+   * Encodes a value of one of the types accepted by {@link #canEncode}.
+   *
+   * @param value the value to encode
+   * @return the encoded bytes
+   * @throws IllegalArgumentException if the value cannot be encoded
+   */
+  public static byte[] encode(Object value) throws IOException {
+    ByteArrayOutputStream b = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(b);
+    out.writeByte(MAGIC);
+    out.writeByte(VERSION);
+    if (value instanceof Maze) {
+      out.writeByte(KIND_MAZE);
+      writeMaze(out, (Maze) value);
+    } else if (value instanceof MazeDelta) {
+      out.writeByte(KIND_MAZE_DELTA);
+      writeMazeDelta(out, (MazeDelta) value);
+    } else if (value instanceof Tile) {
+      out.writeByte(KIND_TILE);
+      writeTile(out, (Tile) value);
+    } else if (value instanceof Creature) {
+      out.writeByte(KIND_CREATURE);
+      writeCreature(out, (Creature) value);
+    } else if (value instanceof Pickup) {
+      out.writeByte(KIND_PICKUP);
+      writePickup(out, (Pickup) value);
+    } else if (canEncode(value)) {
+      out.writeByte(KIND_PICKUP_LIST);
+      @SuppressWarnings("unchecked")
+      List<Pickup> pickups = (List<Pickup>) value;
+      writePickups(out, pickups);
+    } else {
+      throw new IllegalArgumentException("Cannot encode " + value);
+    }
+    out.close();
+    return b.toByteArray();
+  }
+
+  /**
+   * Decodes bytes written by {@link #encode}.
+   *
+   * @param bytes the encoded bytes
+   * @param clazz the expected type of the value
+   * @return the decoded value
+   * @throws IOException if the bytes are not a valid encoding of the expected type
+   */
+  public static <T> T decode(byte[] bytes, Class<T> clazz) throws IOException {
+    if (!isEncoded(bytes)) {
+      throw new IOException("Not an encoded world value.");
+    }
+    DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+    in.readUnsignedByte(); // magic
+    int version = in.readUnsignedByte();
+    if (version != VERSION) {
+      throw new IOException("Unsupported world codec version " + version);
+    }
+    Object value;
+    int kind = in.readUnsignedByte();
+    switch (kind) {
+      case KIND_MAZE:
+        value = readMaze(in);
+        break;
+      case KIND_MAZE_DELTA:
+        value = readMazeDelta(in);
+        break;
+      case KIND_TILE:
+        value = readTile(in);
+        break;
+      case KIND_PICKUP_LIST:
+        value = readPickups(in);
+        break;
+      case KIND_CREATURE:
+        value = readCreature(in);
+        break;
+      case KIND_PICKUP:
+        value = readPickup(in);
+        break;
+      default:
+        throw new IOException("Unknown world codec kind " + kind);
+    }
+    if (!clazz.isInstance(value)) {
+      throw new IOException("Expected " + clazz.getName() + " but found "
+          + value.getClass().getName());
+    }
+    return clazz.cast(value);
+  }
+
+  /**
+   * Creates a serializable stand-in for a value, for use in a {@code writeReplace} method. Java
+   * serialization (for example when a value is put into Memcache) then writes only the encoded
+   * bytes.
+   */
+  public static Object serializedForm(Object value) throws ObjectStreamException {
+    try {
+      return new SerializedForm(encode(value));
+    } catch (IOException e) {
+      throw new java.io.InvalidObjectException(e.getMessage());
+    }
+  }
+
+  /**
+   * Holds the encoded bytes of a value while it is Java-serialized, and resolves back to the
+   * decoded value when read.
+   */
+  private static final class SerializedForm implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final byte[] bytes;
+
+    SerializedForm(byte[] bytes) {
+      this.bytes = bytes;
+    }
+
+    private Object readResolve() throws ObjectStreamException {
+      try {
+        return decode(bytes, Object.class);
+      } catch (IOException e) {
+        throw new java.io.InvalidObjectException(e.getMessage());
+      }
+    }
+  }
+
+  /*
+   * Maze.
+   */
+
+  private static void writeMaze(DataOutputStream out, Maze maze) throws IOException {
+    MazeType type = maze.getType();
+    writeVarint(out, type == null ? 0 : type.ordinal() + 1);
+    if (maze.getSeed() == null) {
+      out.writeByte(0);
+    } else {
+      out.writeByte(1);
+      out.writeLong(maze.getSeed());
+    }
+    writeNullableCoordinates(out, maze.getStartingCoordinates());
+
+    if (!maze.hasGrid()) {
+      writeVarint(out, 0);
+      return;
+    }
+    int width = maze.getWidth();
+    int height = maze.getHeight();
+    writeVarint(out, width + 1);
+    writeVarint(out, height);
+
+    // Intern the descriptions: they are drawn from a small vocabulary and repeat across tiles.
+    List<String> strings = new ArrayList<String>();
+    Map<String, Integer> stringIds = new HashMap<String, Integer>();
+    for (int x = 0; x < width; x++) {
+      for (int y = 0; y < height; y++) {
+        String description = maze.hasTile(x, y) ? maze.getDescription(x, y) : null;
+        if (description != null && !stringIds.containsKey(description)) {
+          stringIds.put(description, strings.size());
+          strings.add(description);
+        }
+      }
+    }
+    writeVarint(out, strings.size());
+    for (String string : strings) {
+      out.writeUTF(string);
+    }
+
+    // The open directions are written in the maze's own mask layout, which marks missing Tiles and
+    // Tiles without directions the same way as toMask.
+    for (int x = 0; x < width; x++) {
+      for (int y = 0; y < height; y++) {
+        if (!maze.hasTile(x, y)) {
+          out.writeByte(0x80);
+          continue;
+        }
+        out.writeByte(maze.getOpenMask(x, y));
+        String description = maze.getDescription(x, y);
+        writeVarint(out, description == null ? 0 : stringIds.get(description) + 1);
+        writeCreatures(out, maze.getCreatures(x, y));
+        writePickups(out, maze.getPickups(x, y));
+      }
+    }
+  }
+
+  private static Maze readMaze(DataInputStream in) throws IOException {
+    Maze maze = new Maze();
+    int type = readVarint(in);
+    maze.setType(type == 0 ? null : MazeType.values()[type - 1]);
+    if (in.readUnsignedByte() != 0) {
+      maze.setSeed(in.readLong());
+    }
+    maze.setStartingCoordinates(readNullableCoordinates(in));
+
+    int width = readVarint(in) - 1;
+    if (width < 0) {
+      return maze;
+    }
+    int height = readVarint(in);
+
+    String[] strings = new String[readVarint(in)];
+    for (int i = 0; i < strings.length; i++) {
+      strings[i] = in.readUTF();
+    }
+
+    maze.initGrid(width, height);
+    for (int x = 0; x < width; x++) {
+      for (int y = 0; y < height; y++) {
+        int mask = in.readUnsignedByte();
+        if ((mask & 0x80) != 0) {
+          continue;
+        }
+        maze.setOpenMask(x, y, mask);
+        int description = readVarint(in);
+        maze.setDescription(x, y, description == 0 ? null : strings[description - 1]);
+        maze.setCreatures(x, y, readCreatures(in));
+        maze.setPickups(x, y, readPickupSet(in));
+      }
+    }
+    return maze;
+  }
+
+  /*
+   * MazeDelta.
+   */
+
+  private static void writeMazeDelta(DataOutputStream out, MazeDelta delta) throws IOException {
+    List<Tile> tiles = delta.getChangedTiles();
+    writeVarint(out, tiles.size());
+    for (Tile tile : tiles) {
+      writeTile(out, tile);
+    }
+  }
+
+  private static MazeDelta readMazeDelta(DataInputStream in) throws IOException {
+    int size = readVarint(in);
+    ArrayList<Tile> tiles = new ArrayList<Tile>(size);
+    for (int i = 0; i < size; i++) {
+      tiles.add(readTile(in));
+    }
+    MazeDelta delta = new MazeDelta();
+    delta.setChangedTiles(tiles);
+    return delta;
+  }
+
+  /*
+   * Tile.
+   */
+
+  private static void writeTile(DataOutputStream out, Tile tile) throws IOException {
+    writeNullableCoordinates(out, tile.getCoord());
+    out.writeByte(toMask(tile.getOpenTo()));
+    writeNullableString(out, tile.getDescription());
+    writeCreatures(out, tile.getCreatures());
+    writePickups(out, tile.getPickups());
+  }
+
+  private static Tile readTile(DataInputStream in) throws IOException {
+    Tile tile = new Tile();
+    tile.setCoord(readNullableCoordinates(in));
+    tile.setOpenTo(fromMask(in.readUnsignedByte()));
+    tile.setDescription(readNullableString(in));
+    tile.setCreatures(readCreatures(in));
+    tile.setPickups(readPickupSet(in));
+    return tile;
+  }
+
+  private static int toMask(Set<Cardinal> openTo) {
+    if (openTo == null) {
+      return 0x40;
+    }
+    int mask = 0;
+    for (Cardinal direction : openTo) {
+      mask |= 1 << direction.ordinal();
+    }
+    return mask;
+  }
+
+  private static Set<Cardinal> fromMask(int mask) {
+    if ((mask & 0x40) != 0) {
+      return null;
+    }
+    Set<Cardinal> openTo = new HashSet<Cardinal>();
+    for (Cardinal direction : Cardinal.values()) {
+      if ((mask & (1 << direction.ordinal())) != 0) {
+        openTo.add(direction);
+      }
+    }
+    return openTo;
+  }
+
+  /*
+   * Creatures and pickups. Collections are prefixed with their size + 1, with 0 meaning null.
+   */
+
+  private static void writeCreatures(DataOutputStream out, Set<Creature> creatures)
+      throws IOException {
+    if (creatures == null) {
+      writeVarint(out, 0);
+      return;
+    }
+    writeVarint(out, creatures.size() + 1);
+    for (Creature creature : creatures) {
+      writeCreature(out, creature);
+    }
+  }
+
+  private static Set<Creature> readCreatures(DataInputStream in) throws IOException {
+    int size = readVarint(in) - 1;
+    if (size < 0) {
+      return null;
+    }
+    Set<Creature> creatures = new HashSet<Creature>();
+    for (int i = 0; i < size; i++) {
+      creatures.add(readCreature(in));
+    }
+    return creatures;
+  }
+
+  private static void writePickups(DataOutputStream out, Iterable<Pickup> pickups)
+      throws IOException {
+    if (pickups == null) {
+      writeVarint(out, 0);
+      return;
+    }
+    int size = 0;
+    for (@SuppressWarnings("unused") Pickup pickup : pickups) {
+      size++;
+    }
+    writeVarint(out, size + 1);
+    for (Pickup pickup : pickups) {
+      writePickup(out, pickup);
+    }
+  }
+
+  private static ArrayList<Pickup> readPickups(DataInputStream in) throws IOException {
+    int size = readVarint(in) - 1;
+    if (size < 0) {
+      return null;
+    }
+    ArrayList<Pickup> pickups = new ArrayList<Pickup>(size);
+    for (int i = 0; i < size; i++) {
+      pickups.add(readPickup(in));
+    }
+    return pickups;
+  }
+
+  private static Set<Pickup> readPickupSet(DataInputStream in) throws IOException {
+    ArrayList<Pickup> pickups = readPickups(in);
+    return pickups == null ? null : new HashSet<Pickup>(pickups);
+  }
+
+  private static void writeCreature(DataOutputStream out, Creature creature) throws IOException {
+    int id = CreatureTypes.getId(creature.getName());
+    if (id == CreatureTypes.UNKNOWN
+        || CreatureTypes.get(id).getMaxEffect() != creature.getMaxEffect()) {
+      writeVarint(out, UNKNOWN_TYPE);
+      writeNullableString(out, creature.getName());
+      writeNullableString(out, creature.getDescription());
+      writeSignedVarlong(out, creature.getHitPoints());
+      writeSignedVarlong(out, creature.getMaxEffect());
+      return;
+    }
+    writeVarint(out, id);
+    writeSignedVarlong(out, creature.getHitPoints());
+    String description = creature.getDescription();
+    if (description != null && description.equals(CreatureTypes.get(id).getDescription())) {
+      out.writeBoolean(false);
+    } else {
+      out.writeBoolean(true);
+      writeNullableString(out, description);
+    }
+  }
+
+  private static Creature readCreature(DataInputStream in) throws IOException {
+    int id = readVarint(in);
+    if (id == UNKNOWN_TYPE) {
+      String name = readNullableString(in);
+      String description = readNullableString(in);
+      long hitPoints = readSignedVarlong(in);
+      long maxEffect = readSignedVarlong(in);
+      Creature creature = new Creature(name, "", (int) hitPoints, (int) maxEffect);
+      creature.setDescription(description);
+      return creature;
+    }
+    if (id > CreatureTypes.size()) {
+      throw new IOException("Unknown creature type id " + id);
+    }
+    Creature creature = CreatureTypes.create(CreatureTypes.get(id));
+    creature.setHitPoints(readSignedVarlong(in));
+    if (in.readBoolean()) {
+      creature.setDescription(readNullableString(in));
+    }
+    return creature;
+  }
+
+  private static void writePickup(DataOutputStream out, Pickup pickup) throws IOException {
+    int id = PickupTypes.getId(pickup.getName());
+    if (id == PickupTypes.UNKNOWN || PickupTypes.get(id).getMaxEffect() != pickup.getMaxEffect()
+        || !PickupTypes.get(id).getDescription().equals(pickup.getDescription())) {
+      writeVarint(out, UNKNOWN_TYPE);
+      writeNullableString(out, pickup.getName());
+      writeNullableString(out, pickup.getDescription());
+      writeSignedVarlong(out, pickup.getNumUses());
+      writeSignedVarlong(out, pickup.getMaxEffect());
+      return;
+    }
+    writeVarint(out, id);
+    writeSignedVarlong(out, pickup.getNumUses());
+  }
+
+  private static Pickup readPickup(DataInputStream in) throws IOException {
+    int id = readVarint(in);
+    if (id == UNKNOWN_TYPE) {
+      String name = readNullableString(in);
+      String description = readNullableString(in);
+      long numUses = readSignedVarlong(in);
+      long maxEffect = readSignedVarlong(in);
+      Pickup pickup = new Pickup(name, "", (int) numUses, (int) maxEffect);
+      pickup.setDescription(description);
+      return pickup;
+    }
+    if (id > PickupTypes.size()) {
+      throw new IOException("Unknown pickup type id " + id);
+    }
+    Pickup pickup = PickupTypes.create(PickupTypes.get(id));
+    pickup.setNumUses(readSignedVarlong(in));
+    return pickup;
+  }
+
+  /*
+   * Primitives.
+   */
+
+  private static void writeNullableCoordinates(DataOutputStream out, Coordinates coord)
+      throws IOException {
+    out.writeBoolean(coord != null);
+    if (coord != null) {
+      writeSignedVarlong(out, coord.x);
+      writeSignedVarlong(out, coord.y);
+    }
+  }
+
+  private static Coordinates readNullableCoordinates(DataInputStream in) throws IOException {
+    if (!in.readBoolean()) {
+      return null;
+    }
+    return new Coordinates((int) readSignedVarlong(in), (int) readSignedVarlong(in));
+  }
+
+  private static void writeNullableString(DataOutputStream out, String string)
+      throws IOException {
+    out.writeBoolean(string != null);
+    if (string != null) {
+      out.writeUTF(string);
+    }
+  }
+
+  private static String readNullableString(DataInputStream in) throws IOException {
+    return in.readBoolean() ? in.readUTF() : null;
+  }
+
+  /**
+   * Writes a non-negative int in 7-bit groups, least significant group first.
+   */
+  static void writeVarint(DataOutputStream out, int value) throws IOException {
+    while ((value & ~0x7F) != 0) {
+      out.writeByte((value & 0x7F) | 0x80);
+      value >>>= 7;
+    }
+    out.writeByte(value);
+  }
+
+  static int readVarint(DataInputStream in) throws IOException {
+    int value = 0;
+    for (int shift = 0; shift < 32; shift += 7) {
+      int b = in.readUnsignedByte();
+      value |= (b & 0x7F) << shift;
+      if ((b & 0x80) == 0) {
+        return value;
+      }
+    }
+    throw new IOException("Malformed varint.");
+  }
+
+  /**
+   * Writes a long of either sign, zig-zag encoded so that small magnitudes stay short.
+   */
+  static void writeSignedVarlong(DataOutputStream out, long value) throws IOException {
+    long zigzag = (value << 1) ^ (value >> 63);
+    while ((zigzag & ~0x7FL) != 0) {
+      out.writeByte((int) ((zigzag & 0x7F) | 0x80));
+      zigzag >>>= 7;
+    }
+    out.writeByte((int) zigzag);
+  }
+
+  static long readSignedVarlong(DataInputStream in) throws IOException {
+    long zigzag = 0;
+    for (int shift = 0; shift < 64; shift += 7) {
+      int b = in.readUnsignedByte();
+      zigzag |= (long) (b & 0x7F) << shift;
+      if ((b & 0x80) == 0) {
+        return (zigzag >>> 1) ^ -(zigzag & 1);
+      }
+    }
+    throw new IOException("Malformed varint.");
+  }
+}
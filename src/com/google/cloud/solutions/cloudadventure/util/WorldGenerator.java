@@ -17,14 +17,69 @@
 package com.google.cloud.solutions.cloudadventure.util;
 
 import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
 
 /**
  * This class helps generate certain parts of the player world: the {@link Maze}. It also provides
  * some mappings to numbers used in the game, for example: Creature damage to adjective.
+ * <p>
+ * An instance created with a seed draws all of its random numbers from that seed, so a maze
+ * generated with it can be generated again, identically, from the same seed. Each maze generation
+ * has its own instance, and the static methods use {@link ThreadLocalRandom}, so concurrent
+ * requests never contend on a shared random number generator.
  */
 public class WorldGenerator {
 
-  private static Random random = new Random();
+  /**
+   * The version of the seeded generation. Bump it whenever a change means the same seed would no
+   * longer generate the same maze. Games store the version their maze was generated with and refuse
+   * to load under any other, so a bump must keep the previous generation selectable by version
+   * until no stored game uses it.
+   */
+  public static final int VERSION = 1;
+
+  private final Random seeded;
+
+  /**
+   * Creates a generator whose random numbers are all drawn from the given seed.
+   *
+   * @param seed the seed
+   */
+  public WorldGenerator(long seed) {
+    this.seeded = new Random(seed);
+  }
+
+  /**
+   * @return a new seed for a {@link WorldGenerator}
+   */
+  public static long newSeed() {
+    return ThreadLocalRandom.current().nextLong();
+  }
+
+  /**
+   * Gets a random int from 0 (inclusive) to paramater exclusive (exclusive), drawn from this
+   * generator's seed.
+   *
+   * @param exclusive
+   * @return the random integer
+   */
+  public int nextInt(int exclusive) {
+    return seeded.nextInt(exclusive);
+  }
+
+  /**
+   * @return a name for a map location, drawn from this generator's seed
+   */
+  public String nextLocationDescription() {
+    return generateLocationDescription(seeded);
+  }
+
+  /**
+   * @return the source of this generator's random numbers, for generation steps that need one
+   */
+  public Random getSource() {
+    return seeded;
+  }
 
   /**
    * Gets a random int from 0 (inclusive) to paramater exclusive (exclusive).
@@ -35,7 +90,7 @@ public class WorldGenerator {
    * @return the random integer
    */
   public static int getRandom(int exclusive) {
-    return random.nextInt(exclusive);
+    return ThreadLocalRandom.current().nextInt(exclusive);
   }
 
   /**
@@ -84,8 +139,12 @@ public class WorldGenerator {
    * @return a randomly-generated name for a map location
    */
   public static String generateLocationDescription() {
-    String type = LOCATION_TYPES[getRandom(LOCATION_TYPES.length)];
-    String name = LOCATION_NAMES[getRandom(LOCATION_NAMES.length)];
+    return generateLocationDescription(ThreadLocalRandom.current());
+  }
+
+  private static String generateLocationDescription(Random random) {
+    String type = LOCATION_TYPES[random.nextInt(LOCATION_TYPES.length)];
+    String name = LOCATION_NAMES[random.nextInt(LOCATION_NAMES.length)];
     if (random.nextBoolean()) {
       return type + " of " + name;
     } else {